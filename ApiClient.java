@@ -0,0 +1,133 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One long-lived HttpClient for every OpenAI call, so connections and TLS sessions
+// are reused (and multiplexed over HTTP/2 when the server supports it) instead of
+// building a fresh pool and selector thread on every request. HttpClient does not expose
+// its pool or its handshakes, so stats() reports requests and protocol versions only;
+// HttpClientBenchmark counts connections at its stub server.
+final class ApiClient {
+    private static final ApiClient SHARED = new ApiClient(
+            Duration.ofMillis(Long.getLong("filmassistant.http.connectTimeoutMs", 10_000)),
+            Duration.ofMillis(Long.getLong("filmassistant.http.requestTimeoutMs", 120_000)));
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong http2Responses = new AtomicLong();
+    private final AtomicLong http1Responses = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    ApiClient(Duration connectTimeout, Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "api-client-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    static ApiClient shared() {
+        return SHARED;
+    }
+
+    HttpClient httpClient() {
+        return client;
+    }
+
+    // Request builder with the per-request timeout and JSON content type already set.
+    HttpRequest.Builder newRequest(String url) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json");
+    }
+
+    HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        requests.incrementAndGet();
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        long start = System.nanoTime();
+        try {
+            HttpResponse<T> response = client.send(request, bodyHandler);
+            record(response);
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            totalLatencyNanos.addAndGet(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void record(HttpResponse<?> response) {
+        if (response.version() == HttpClient.Version.HTTP_2) {
+            http2Responses.incrementAndGet();
+        } else {
+            http1Responses.incrementAndGet();
+        }
+    }
+
+    Stats stats() {
+        return new Stats(requests.get(), failures.get(), http2Responses.get(), http1Responses.get(),
+                inFlight.get(), peakInFlight.get(), totalLatencyNanos.get());
+    }
+
+    static final class Stats {
+        final long requests;
+        final long failures;
+        final long http2Responses;
+        final long http1Responses;
+        final int inFlight;
+        final int peakInFlight;
+        final long totalLatencyNanos;
+
+        Stats(long requests, long failures, long http2Responses, long http1Responses, int inFlight,
+              int peakInFlight, long totalLatencyNanos) {
+            this.requests = requests;
+            this.failures = failures;
+            this.http2Responses = http2Responses;
+            this.http1Responses = http1Responses;
+            this.inFlight = inFlight;
+            this.peakInFlight = peakInFlight;
+            this.totalLatencyNanos = totalLatencyNanos;
+        }
+
+        double meanLatencyMillis() {
+            return requests == 0 ? 0 : totalLatencyNanos / 1e6 / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d failures=%d h2=%d h1=%d inFlight=%d peakInFlight=%d meanLatencyMs=%.2f",
+                    requests, failures, http2Responses, http1Responses, inFlight, peakInFlight,
+                    meanLatencyMillis());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ac.kent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Storyboards per minute from BatchRunner at increasing topic concurrency, against the
+// local StubApiServer with a fixed per-request latency. The response cache is bypassed
+// so every run makes every request.
+// Usage: java ac.kent.BatchBenchmark [topics] [latencyMs]
+public class BatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        int topicCount = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+        int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        try (StubApiServer stub = new StubApiServer(latencyMs)) {
+            // All are read once when the classes using them are first loaded, which is below.
+            System.setProperty("filmassistant.api.base", stub.baseUrl());
+            System.setProperty("filmassistant.cache.bypass", "true");
+            // Measure the runner itself, not the default OpenAI rate limits.
+            System.setProperty("filmassistant.limits.chat.rpm", "0");
+            System.setProperty("filmassistant.limits.chat.tpm", "0");
+            System.setProperty("filmassistant.limits.images.rpm", "0");
+
+            List<BatchRunner.Job> jobs = new ArrayList<>();
+            for (int i = 0; i < topicCount; i++) {
+                jobs.add(new BatchRunner.Job("A lighthouse keeper finds message number " + i, "Medium"));
+            }
+
+            // Warm up class loading, JIT and the connection pool.
+            new BatchRunner(Files.createTempDirectory("batch-warmup"), 2).run(jobs.subList(0, 2));
+
+            List<String> lines = new ArrayList<>();
+            for (int concurrency : new int[]{1, 4, 16}) {
+                Path output = Files.createTempDirectory("batch-" + concurrency);
+                BatchRunner.Result result = new BatchRunner(output, concurrency).run(jobs);
+                lines.add(String.format("concurrency %2d: %s", concurrency, result));
+            }
+            System.out.println();
+            lines.forEach(System.out::println);
+            System.out.println("Requests: " + RequestScheduler.shared().stats());
+            System.out.println("HTTP: " + ApiClient.shared().stats());
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package ac.kent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Headless storyboard generation for a file of topics. Each topic runs the same rewrite,
+// story, scene and image steps as the GUI, and at most `concurrency` topics are in
+// flight at once. The story is complete before its scenes are asked for, so there is
+// nothing to overlap: each topic takes its scenes in one call, as the GUI does without
+// the pipeline, and the images of all topics share one ImageStage, so no more than
+// filmassistant.images.concurrency image requests run at a time however many topics
+// do. A topic is written to <output>/<id>.tmp and renamed to <output>/<id>
+// when complete, then recorded in <output>/checkpoint.log; a rerun after a crash skips
+// recorded topics and starts unfinished ones again from scratch.
+//
+// Usage: java ac.kent.BatchRunner <topics.jsonl|topics.csv> <output dir> [concurrency]
+// JSONL lines are {"topic": "...", "creativity": "High"}; CSV rows are topic,creativity.
+public class BatchRunner {
+    static final int DEFAULT_CONCURRENCY = Integer.getInteger("filmassistant.batch.concurrency", 4);
+    static final String DEFAULT_CREATIVITY = "Medium";
+    static final String CHECKPOINT_FILE = "checkpoint.log";
+
+    static final class Job {
+        final String id;
+        final String topic;
+        final String creativity;
+
+        Job(String topic, String creativity) {
+            this.topic = topic;
+            this.creativity = creativity;
+            this.id = slug(topic) + "-" + ResponseCache.key("batch", topic, creativity).substring(0, 8);
+        }
+    }
+
+    static final class Result {
+        final int completed;
+        final int skipped;
+        final int failed;
+        final long elapsedNanos;
+
+        Result(int completed, int skipped, int failed, long elapsedNanos) {
+            this.completed = completed;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        double storyboardsPerMinute() {
+            return elapsedNanos == 0 ? 0 : completed * 60e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d completed, %d skipped, %d failed in %.1fs (%.1f storyboards/min)",
+                    completed, skipped, failed, elapsedNanos / 1e9, storyboardsPerMinute());
+        }
+    }
+
+    private final Path outputDir;
+    private final int concurrency;
+    private final Path checkpoint;
+    private final ImageStage imageStage = new ImageStage(ImageStage.DEFAULT_CONCURRENCY);
+
+    BatchRunner(Path outputDir, int concurrency) {
+        this.outputDir = outputDir;
+        this.concurrency = concurrency;
+        this.checkpoint = outputDir.resolve(CHECKPOINT_FILE);
+    }
+
+    Result run(List<Job> jobs) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        Set<String> done = readCheckpoint();
+        List<Job> pending = new ArrayList<>();
+        Set<String> queued = new HashSet<>();
+        for (Job job : jobs) {
+            if (!done.contains(job.id) && queued.add(job.id)) {
+                pending.add(job);
+            }
+        }
+        int skipped = jobs.size() - pending.size();
+        System.out.println("Batch: " + pending.size() + " topics to run, " + skipped + " already done or duplicated");
+
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService topics = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "batch-topic");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (Job job : pending) {
+                topics.execute(() -> {
+                    try {
+                        runJob(job);
+                        int count = completed.incrementAndGet();
+                        double minutes = (System.nanoTime() - start) / 60e9;
+                        System.out.printf(Locale.ROOT, "Batch: %d/%d done (%s), %.1f storyboards/min%n",
+                                count, pending.size(), job.id, count / minutes);
+                    } catch (Exception e) {
+                        if (e instanceof InterruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                        failed.incrementAndGet();
+                        System.out.println("Batch: " + job.id + " failed: " + e);
+                    }
+                });
+            }
+            topics.shutdown();
+            topics.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            topics.shutdownNow();
+        }
+        return new Result(completed.get(), skipped, failed.get(), System.nanoTime() - start);
+    }
+
+    private void runJob(Job job) throws Exception {
+        Path workDir = outputDir.resolve(job.id + ".tmp");
+        deleteRecursively(workDir); // left over from an interrupted run
+        Files.createDirectories(workDir);
+
+        RequestPlanner.TopicAndStory written = Main.writeTopicAndStory(job.topic, job.creativity, false,
+                delta -> { }, delta -> { }, hook -> { });
+        String modifiedTopic = written.topic;
+        String story = written.story;
+
+        // Images are only written to disk here; nothing needs them decoded. Results arrive
+        // on this thread.
+        List<ImageStage.SceneImage> scenes = new ArrayList<>();
+        String[] descriptions = Main.generateImageDescriptionsFromStory(story, StoryPipeline.MAX_SCENES);
+        imageStage.run(descriptions, (index, description) -> new ImageStage.SceneImage(index, description,
+                Main.fetchSceneImage(description, workDir.resolve("image" + index + ".png")), null), scenes::add);
+        scenes.sort(Comparator.comparingInt(scene -> scene.index));
+
+        JSONArray sceneJson = new JSONArray();
+        for (ImageStage.SceneImage scene : scenes) {
+            sceneJson.put(new JSONObject()
+                    .put("index", scene.index)
+                    .put("description", scene.description)
+                    .put("image", scene.imageFile.getFileName().toString()));
+        }
+        JSONObject storyboard = new JSONObject()
+                .put("topic", job.topic)
+                .put("creativity", job.creativity)
+                .put("modifiedTopic", modifiedTopic)
+                .put("story", story)
+                .put("scenes", sceneJson);
+        Files.writeString(workDir.resolve("storyboard.json"), storyboard.toString(2));
+        Files.writeString(workDir.resolve("story.txt"), "Topic: " + modifiedTopic + "\n\n" + story);
+
+        Path finalDir = outputDir.resolve(job.id);
+        deleteRecursively(finalDir); // finished but not checkpointed before a crash
+        Files.move(workDir, finalDir, StandardCopyOption.ATOMIC_MOVE);
+        recordCheckpoint(job.id);
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        Set<String> done = new HashSet<>();
+        if (Files.exists(checkpoint)) {
+            for (String line : Files.readAllLines(checkpoint)) {
+                if (!line.isBlank()) {
+                    done.add(line.trim());
+                }
+            }
+        }
+        return done;
+    }
+
+    // One synced line per finished topic, so a crash loses at most the topics in flight.
+    private synchronized void recordCheckpoint(String id) throws IOException {
+        Files.writeString(checkpoint, id + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.SYNC);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    static List<Job> readJobs(Path file) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        boolean jsonl = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".jsonl");
+        boolean header = !jsonl;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            String topic;
+            String creativity;
+            if (jsonl) {
+                JSONObject row = new JSONObject(line);
+                topic = row.getString("topic");
+                creativity = row.optString("creativity", DEFAULT_CREATIVITY);
+            } else {
+                List<String> fields = parseCsvLine(line);
+                if (header && fields.get(0).trim().equalsIgnoreCase("topic")) {
+                    header = false;
+                    continue;
+                }
+                header = false;
+                topic = fields.get(0);
+                creativity = fields.size() > 1 && !fields.get(1).isBlank() ? fields.get(1).trim() : DEFAULT_CREATIVITY;
+            }
+            jobs.add(new Job(topic.trim(), creativity));
+        }
+        return jobs;
+    }
+
+    // Comma-separated fields; a field may be double-quoted, with "" for a literal quote.
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String slug(String topic) {
+        String slug = topic.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "-").replaceAll("^-+|-+$", "");
+        if (slug.length() > 40) {
+            slug = slug.substring(0, 40).replaceAll("-+$", "");
+        }
+        return slug.isEmpty() ? "topic" : slug;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java ac.kent.BatchRunner <topics.jsonl|topics.csv> <output dir> [concurrency]");
+            System.exit(2);
+        }
+        MetricsEndpoint.startIfConfigured();
+        List<Job> jobs = readJobs(Paths.get(args[0]));
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CONCURRENCY;
+        Result result = new BatchRunner(Paths.get(args[1]), concurrency).run(jobs);
+        System.out.println("Batch: " + result);
+        System.out.println("Response cache: " + ResponseCache.shared().stats());
+        System.out.println("Requests: " + RequestScheduler.shared().stats());
+        System.out.println("HTTP: " + ApiClient.shared().stats());
+        if (result.failed > 0) {
+            System.exit(1);
+        }
+    }
+}
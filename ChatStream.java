@@ -0,0 +1,91 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.json.JSONException;
+
+// Reads a chat completion sent with "stream": true. The server answers with
+// server-sent events, one "data: {json}" line per chunk and "data: [DONE]" at the end;
+// every content delta is passed to the callback as soon as its line arrives.
+final class ChatStream {
+    private static final String DATA_PREFIX = "data:";
+    private static final String DONE = "[DONE]";
+
+    interface DeltaListener {
+        void onDelta(String delta) throws InterruptedException;
+    }
+
+    private ChatStream() {
+    }
+
+    // Returns the full concatenated content once the stream has finished. onCancel is
+    // handed a hook that aborts the stream, which then ends with InterruptedException.
+    // Reads from the response body do not respond to interrupts (the JDK retries the
+    // wait), so closing the body is the only way to stop a stream waiting on the server.
+    static String stream(HttpRequest request, DeltaListener onDelta, Consumer<Runnable> onCancel)
+            throws IOException, InterruptedException {
+        // Streams are never coalesced: every caller needs its own deltas as they arrive.
+        HttpResponse<Stream<String>> response = RequestScheduler.shared()
+                .send(RequestScheduler.Endpoint.CHAT, request, HttpResponse.BodyHandlers.ofLines());
+        Stream<String> body = response.body();
+        try (Stream<String> lines = body) {
+            AtomicBoolean cancelled = new AtomicBoolean();
+            // Closes the body from the cancelling thread; the try block still closes it on every exit.
+            onCancel.accept(() -> {
+                cancelled.set(true);
+                body.close();
+            });
+            StringBuilder content = new StringBuilder();
+            long deltas = 0;
+            Iterator<String> it = lines.iterator();
+            while (true) {
+                if (cancelled.get() || Thread.interrupted()) {
+                    throw new InterruptedException("Chat stream cancelled");
+                }
+                String line;
+                try {
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                    line = it.next();
+                } catch (UncheckedIOException e) {
+                    if (cancelled.get()) {
+                        throw new InterruptedException("Chat stream cancelled");
+                    }
+                    throw e.getCause();
+                }
+                if (!line.startsWith(DATA_PREFIX)) {
+                    continue; // blank separators, comments and event/id fields
+                }
+                String data = line.substring(DATA_PREFIX.length()).trim();
+                if (data.equals(DONE)) {
+                    break;
+                }
+                String delta = extractDelta(data);
+                if (delta != null && !delta.isEmpty()) {
+                    deltas++;
+                    content.append(delta);
+                    onDelta.onDelta(delta);
+                }
+            }
+            if (cancelled.get()) {
+                throw new InterruptedException("Chat stream cancelled"); // closing can also read as end of stream
+            }
+            // Streamed responses carry no usage block; each delta is about one token.
+            Metrics.addTokens(0, deltas);
+            return content.toString();
+        }
+    }
+
+    // Content of choices[0].delta in a single chunk, or null for role/finish-only chunks.
+    static String extractDelta(String chunk) throws JSONException {
+        return JsonReader.findString(chunk, "choices", 0, "delta", "content");
+    }
+}
@@ -0,0 +1,103 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+// Filter throughput for a story-sized batch of five 1024x1024 images. First grayscale via
+// the old disk round trip (loadLibrary, imread, cvtColor, imwrite, ImageIO.read of the
+// result) against the in-memory engine, then every preset chain on the OpenCV engine
+// against the pure-Java renderer. Needs the OpenCV native library on java.library.path.
+// Usage: java -Djava.library.path=<opencv lib dir> ac.kent.FilterBenchmark [rounds]
+public class FilterBenchmark {
+    private static final int BATCH = 5;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        FilterEngine.loadNativeLibrary();
+        if (!FilterEngine.isAvailable()) {
+            System.out.println("OpenCV native library not found; set -Djava.library.path");
+            return;
+        }
+
+        Path dir = Files.createTempDirectory("filter-bench");
+        BufferedImage[] decoded = new BufferedImage[BATCH];
+        String[] originals = new String[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            File file = dir.resolve("image" + i + ".png").toFile();
+            ImageIO.write(StubApiServer.sampleImage(1024, 1024, i), "png", file);
+            originals[i] = file.getPath();
+            decoded[i] = ImageIO.read(file);
+        }
+
+        try {
+            for (int round = 0; round < 2; round++) { // first round is warm-up
+                boolean print = round == 1;
+                measure("disk round trip", rounds, print, () -> {
+                    for (int i = 0; i < BATCH; i++) {
+                        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+                        Mat image = Imgcodecs.imread(originals[i]);
+                        Mat gray = new Mat();
+                        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+                        String edited = dir.resolve("edited" + i + ".jpeg").toString();
+                        Imgcodecs.imwrite(edited, gray);
+                        ImageIO.read(new File(edited));
+                    }
+                });
+                measure("in-memory engine", rounds, print, () -> {
+                    for (int i = 0; i < BATCH; i++) {
+                        FilterEngine.apply(decoded[i], FilterChain.forName("Grayscale"));
+                    }
+                });
+                for (String preset : FilterChain.PRESETS) {
+                    FilterChain chain = FilterChain.forName(preset);
+                    if (chain.isIdentity()) {
+                        continue;
+                    }
+                    measure(preset + " opencv", rounds, print, () -> {
+                        for (int i = 0; i < BATCH; i++) {
+                            FilterEngine.apply(decoded[i], chain);
+                        }
+                    });
+                    measure(preset + " java", rounds, print, () -> {
+                        for (int i = 0; i < BATCH; i++) {
+                            JavaFilterRenderer.apply(decoded[i], chain);
+                        }
+                    });
+                }
+            }
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static void measure(String label, int rounds, boolean print, Task task) throws Exception {
+        long[] samples = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            task.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        if (print) {
+            Arrays.sort(samples);
+            double p50 = samples[rounds / 2] / 1e6;
+            System.out.printf("%-18s batch p50=%.1fms p99=%.1fms (%.1f images/s)%n", label, p50,
+                    samples[(int) (rounds * 0.99)] / 1e6, BATCH * 1000 / p50);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+// An immutable chain of image filters that renders in one pass. Colour filters
+// (grayscale, sepia, brightness/contrast) are affine maps of RGB, so any sequence of them
+// is folded into a single 3x4 matrix up front; vignette and film grain are per-pixel
+// terms applied after it. Rendering uses OpenCV when the native library is loaded and
+// the pure-Java renderer otherwise.
+final class FilterChain {
+    static final String[] PRESETS = {"None", "Grayscale", "Sepia", "Noir", "Vintage"};
+
+    static final FilterChain NONE = new FilterChain(new double[]{
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0}, 0, 0);
+
+    // Row-major 3x4 affine colour matrix in RGB order: out = M * (r, g, b, 1).
+    final double[] matrix;
+    // 0 = no darkening; 1 = corners fully black.
+    final double vignette;
+    // Peak grain amplitude in 8-bit intensity steps.
+    final double grain;
+
+    private FilterChain(double[] matrix, double vignette, double grain) {
+        this.matrix = matrix;
+        this.vignette = vignette;
+        this.grain = grain;
+    }
+
+    static FilterChain forName(String preset) {
+        switch (preset) {
+            case "Grayscale":
+                return NONE.grayscale();
+            case "Sepia":
+                return NONE.sepia();
+            case "Noir":
+                return NONE.grayscale().brightnessContrast(1.35, -10).vignette(0.6).grain(10);
+            case "Vintage":
+                return NONE.sepia().brightnessContrast(0.9, 8).vignette(0.45).grain(14);
+            default:
+                return NONE;
+        }
+    }
+
+    FilterChain grayscale() {
+        return thenColor(new double[]{
+                0.299, 0.587, 0.114, 0,
+                0.299, 0.587, 0.114, 0,
+                0.299, 0.587, 0.114, 0});
+    }
+
+    FilterChain sepia() {
+        return thenColor(new double[]{
+                0.393, 0.769, 0.189, 0,
+                0.349, 0.686, 0.168, 0,
+                0.272, 0.534, 0.131, 0});
+    }
+
+    // contrast scales around mid-grey, brightness is added afterwards.
+    FilterChain brightnessContrast(double contrast, double brightness) {
+        double offset = 128 * (1 - contrast) + brightness;
+        return thenColor(new double[]{
+                contrast, 0, 0, offset,
+                0, contrast, 0, offset,
+                0, 0, contrast, offset});
+    }
+
+    FilterChain vignette(double strength) {
+        return new FilterChain(matrix, Math.min(1, vignette + strength), grain);
+    }
+
+    FilterChain grain(double amount) {
+        return new FilterChain(matrix, vignette, grain + amount);
+    }
+
+    boolean isIdentity() {
+        return Arrays.equals(matrix, NONE.matrix) && vignette == 0 && grain == 0;
+    }
+
+    BufferedImage apply(BufferedImage image) {
+        if (isIdentity()) {
+            return image;
+        }
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.FILTER)) {
+            return span.succeeded(FilterEngine.isAvailable()
+                    ? FilterEngine.apply(image, this) : JavaFilterRenderer.apply(image, this));
+        }
+    }
+
+    // Composes next after this: out = N * (M * x + m) + n. Intermediate results are not
+    // clamped, which is the price of doing the whole colour chain in one multiply.
+    private FilterChain thenColor(double[] next) {
+        double[] combined = new double[12];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 4; col++) {
+                double sum = col == 3 ? next[row * 4 + 3] : 0;
+                for (int k = 0; k < 3; k++) {
+                    sum += next[row * 4 + k] * matrix[k * 4 + col];
+                }
+                combined[row * 4 + col] = sum;
+            }
+        }
+        return new FilterChain(combined, vignette, grain);
+    }
+
+    // The same matrix for OpenCV's BGR channel order.
+    double[] bgrMatrix() {
+        double[] bgr = new double[12];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                bgr[row * 4 + col] = matrix[(2 - row) * 4 + (2 - col)];
+            }
+            bgr[row * 4 + 3] = matrix[(2 - row) * 4 + 3];
+        }
+        return bgr;
+    }
+
+    // Vignette multiplier for a pixel, in [0, 1].
+    static double vignetteFactor(int x, int y, int width, int height, double strength) {
+        double dx = (x - (width - 1) / 2.0) / (width / 2.0);
+        double dy = (y - (height - 1) / 2.0) / (height / 2.0);
+        return Math.max(0, 1 - strength * (dx * dx + dy * dy) / 2);
+    }
+
+    // Deterministic grain texture value in [-1, 1] for a pixel, so every backend and every
+    // re-render of the same scene produces the same grain.
+    static double grainNoise(int x, int y) {
+        int h = x * 374761393 + y * 668265263;
+        h = (h ^ (h >>> 13)) * 1274126177;
+        h ^= h >>> 16;
+        return (h & 0xFFFF) / 32767.5 - 1;
+    }
+}
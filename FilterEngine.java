@@ -0,0 +1,148 @@
+package ac.kent;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+// Runs OpenCV filters on decoded images entirely in memory. The native library is
+// loaded once per process, pixels go straight from the BufferedImage raster into a Mat
+// and back, and every worker thread keeps its own Mats and conversion buffer so that
+// filtering a batch of same-sized images does not reallocate native memory. Vignette
+// and grain masks depend only on the image size, so they are built once and shared.
+final class FilterEngine {
+    private static volatile boolean loaded;
+    private static volatile Throwable loadFailure;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private static final class Buffers {
+        final Mat src = new Mat();
+        final Mat dst = new Mat();
+        final Mat kernel = new Mat(3, 4, CvType.CV_64F);
+        BufferedImage bgr; // scratch image for sources that are not already 3-byte BGR
+    }
+
+    private static final int MAX_CACHED_MASKS = 8;
+    private static final Map<String, Mat> MASKS = new ConcurrentHashMap<>();
+
+    private FilterEngine() {
+    }
+
+    // Idempotent; call once at startup. A missing native library is remembered and
+    // reported when a filter is first used rather than stopping the application.
+    static synchronized void loadNativeLibrary() {
+        if (loaded || loadFailure != null) {
+            return;
+        }
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            loaded = true;
+        } catch (UnsatisfiedLinkError | SecurityException e) {
+            loadFailure = e;
+            System.out.println("OpenCV native library unavailable: " + e.getMessage());
+        }
+    }
+
+    static boolean isAvailable() {
+        loadNativeLibrary();
+        return loaded;
+    }
+
+    // One Core.transform for the fused colour matrix, then at most one multiply for the
+    // vignette and one weighted add for the grain, all in the thread's pooled Mats.
+    static BufferedImage apply(BufferedImage image, FilterChain chain) {
+        requireNativeLibrary();
+        Buffers buffers = BUFFERS.get();
+        toMat(image, buffers);
+        buffers.kernel.put(0, 0, chain.bgrMatrix());
+        Core.transform(buffers.src, buffers.dst, buffers.kernel);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (chain.vignette > 0) {
+            Core.multiply(buffers.dst, vignetteMask(width, height, chain.vignette), buffers.dst, 1 / 255.0);
+        }
+        if (chain.grain > 0) {
+            double scale = chain.grain / 127.0;
+            Core.addWeighted(buffers.dst, 1, grainMask(width, height), scale, -128 * scale, buffers.dst);
+        }
+        return toBufferedImage(buffers.dst);
+    }
+
+    private static Mat vignetteMask(int width, int height, double strength) {
+        return mask("vignette:" + width + "x" + height + ":" + strength, width, height,
+                (x, y) -> (int) Math.round(255 * FilterChain.vignetteFactor(x, y, width, height, strength)));
+    }
+
+    // Grain is stored offset by 128 so it fits in an unsigned 8-bit Mat.
+    private static Mat grainMask(int width, int height) {
+        return mask("grain:" + width + "x" + height, width, height,
+                (x, y) -> 128 + (int) Math.round(127 * FilterChain.grainNoise(x, y)));
+    }
+
+    private interface MaskFunction {
+        int valueAt(int x, int y);
+    }
+
+    private static Mat mask(String key, int width, int height, MaskFunction function) {
+        Mat cached = MASKS.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] values = new byte[width * height * 3];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                byte v = (byte) function.valueAt(x, y);
+                values[i++] = v;
+                values[i++] = v;
+                values[i++] = v;
+            }
+        }
+        Mat mask = new Mat(height, width, CvType.CV_8UC3);
+        mask.put(0, 0, values);
+        if (MASKS.size() >= MAX_CACHED_MASKS) {
+            MASKS.clear(); // sizes rarely change; in-flight users keep their own reference
+        }
+        MASKS.put(key, mask);
+        return mask;
+    }
+
+    private static void requireNativeLibrary() {
+        if (!isAvailable()) {
+            throw new IllegalStateException("OpenCV native library is not loaded", loadFailure);
+        }
+    }
+
+    // Copies the pixels into buffers.src as 8-bit BGR, reusing the Mat's native storage
+    // when the size matches the previous image.
+    private static void toMat(BufferedImage image, Buffers buffers) {
+        BufferedImage bgr = image;
+        int packedLength = image.getWidth() * image.getHeight() * 3;
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR
+                || ((DataBufferByte) image.getRaster().getDataBuffer()).getData().length != packedLength) {
+            if (buffers.bgr == null || buffers.bgr.getWidth() != image.getWidth()
+                    || buffers.bgr.getHeight() != image.getHeight()) {
+                buffers.bgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            }
+            Graphics2D g = buffers.bgr.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            bgr = buffers.bgr;
+        }
+        byte[] pixels = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+        buffers.src.create(bgr.getHeight(), bgr.getWidth(), CvType.CV_8UC3);
+        buffers.src.put(0, 0, pixels);
+    }
+
+    private static BufferedImage toBufferedImage(Mat mat) {
+        int type = mat.channels() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+        BufferedImage out = new BufferedImage(mat.cols(), mat.rows(), type);
+        mat.get(0, 0, ((DataBufferByte) out.getRaster().getDataBuffer()).getData());
+        return out;
+    }
+}
@@ -0,0 +1,24 @@
+package ac.kent;
+
+import java.net.http.HttpRequest;
+
+// The service that writes the stories and draws the scenes: where requests go, how they
+// are authenticated and which models they name. Request bodies and response parsing
+// are the same for every provider; they all speak the OpenAI API.
+interface GenerationProvider {
+    String chatModel();
+
+    String imageModel();
+
+    String imageSize();
+
+    // A POST to the chat completions endpoint carrying the given JSON body.
+    HttpRequest chatRequest(String body);
+
+    // A POST to the image generations endpoint carrying the given JSON body.
+    HttpRequest imageRequest(String body);
+
+    // A cheap authenticated GET, sent at startup to open the connection ahead of the
+    // first real call.
+    HttpRequest warmUpRequest();
+}
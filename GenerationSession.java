@@ -0,0 +1,166 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// One run of Generate and everything it started. Starting the next run, or pressing
+// Cancel, cancels the session: its cancel hooks interrupt the threads doing its work, so
+// blocking API calls, streams, downloads and queued image jobs stop, and isActive() is
+// false from then on. Results are published only after an isActive() check on the EDT
+// (where cancel() is called) or through commit(), which is ordered against cancel(), so
+// nothing from a cancelled session reaches the window or its directory afterwards.
+//
+// A superseded session's directory is deleted unless it holds a finished storyboard that
+// was never saved. Those are kept, but only the newest filmassistant.originals.keep
+// (default 5) session directories survive each new session and each start of the app.
+final class GenerationSession {
+    static final int KEEP_DIRECTORIES = Math.max(1, Integer.getInteger("filmassistant.originals.keep", 5));
+    // Under the originals root; downloads land here before they are committed.
+    static final String STAGING = ".staging";
+
+    interface Commit {
+        void run() throws IOException;
+    }
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    // Unique across runs of the app, so a new session never writes into an old one's files.
+    final String id = Long.toString(System.currentTimeMillis(), 36) + "-" + COUNTER.incrementAndGet();
+    // Where this session's scene images live, e.g. data/original/<id>/image0.png.
+    final Path directory;
+    private final List<Runnable> cancelHooks = new ArrayList<>();
+    private boolean cancelled;
+    private boolean finished;
+    private boolean saved;
+
+    GenerationSession(Path root) {
+        this.directory = root.resolve(id);
+    }
+
+    synchronized boolean isActive() {
+        return !cancelled;
+    }
+
+    void ensureActive() {
+        if (!isActive()) {
+            throw new CancellationException("Generation " + id + " was cancelled");
+        }
+    }
+
+    // Runs hook when the session is cancelled, or right away if it already has been.
+    void onCancel(Runnable hook) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelHooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    void cancel() {
+        List<Runnable> hooks;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            hooks = new ArrayList<>(cancelHooks);
+            cancelHooks.clear();
+        }
+        hooks.forEach(Runnable::run);
+    }
+
+    // The run ended without being cancelled, successfully or not, and its scenes are on show.
+    synchronized void markFinished() {
+        if (!cancelled) {
+            finished = true;
+        }
+    }
+
+    // The scenes were saved into a project, which holds its own copies of the images.
+    synchronized void markSaved() {
+        saved = true;
+    }
+
+    // True when directory holds the only copy of a storyboard the user has seen: the run
+    // finished and was never saved.
+    synchronized boolean hasUnsavedResult() {
+        return finished && !saved;
+    }
+
+    // Runs commit, typically a move into directory, only while the session is active. It
+    // holds the session lock, so a concurrent cancel() waits for it to finish and a
+    // commit after cancel() throws CancellationException without running.
+    synchronized void commit(Commit commit) throws IOException {
+        ensureActive();
+        commit.run();
+    }
+
+    // Deletes directory. Meant for a superseded session without an unsaved result: once
+    // it is cancelled nothing can be committed into the directory again.
+    void deleteFiles() {
+        deleteRecursively(directory);
+    }
+
+    // Deletes all but the newest keep session directories under root, newest by last
+    // change. The directory on show is the newest one, or the one being filled after it.
+    static void pruneDirectories(Path root, int keep) {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<Path> sessions;
+        try (Stream<Path> children = Files.list(root)) {
+            sessions = children
+                    .filter(child -> Files.isDirectory(child) && !child.getFileName().toString().equals(STAGING))
+                    .sorted(Comparator.comparing(GenerationSession::lastModified).reversed())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            System.out.println("Could not list " + root + ": " + e.getMessage());
+            return;
+        }
+        for (Path stale : sessions.subList(Math.min(keep, sessions.size()), sessions.size())) {
+            deleteRecursively(stale);
+        }
+    }
+
+    // Deletes downloads left in root's staging directory by a run that crashed before it
+    // could clean up. Only safe before any session of this run has started.
+    static void clearStaging(Path root) {
+        deleteRecursively(root.resolve(STAGING));
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0); // gone already, or unreadable: oldest
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    System.out.println("Could not delete " + file + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
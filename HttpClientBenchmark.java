@@ -0,0 +1,93 @@
+package ac.kent;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Compares per-call latency of a fresh HttpClient per request (the old behaviour)
+// against the shared ApiClient, using a local stub chat-completions endpoint. The stub
+// counts the TCP connections each path opens by their distinct client addresses.
+// Usage: java ac.kent.HttpClientBenchmark [calls]
+public class HttpClientBenchmark {
+    private static final byte[] CHAT_RESPONSE = ("{\"choices\":[{\"message\":{\"role\":\"assistant\","
+            + "\"content\":\"Once upon a time.\"}}]}").getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        // Without TCP_NODELAY the stub's split header/body writes hit delayed ACKs on
+        // kept-alive connections, which would penalise exactly the path we want to measure.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        Set<SocketAddress> connections = ConcurrentHashMap.newKeySet();
+        server.createContext("/v1/chat/completions", exchange -> {
+            connections.add(exchange.getRemoteAddress());
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, CHAT_RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(CHAT_RESPONSE);
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+
+        try {
+            ApiClient shared = new ApiClient(Duration.ofSeconds(5), Duration.ofSeconds(30));
+
+            // Warm up both paths so class loading and JIT don't land on the first sample.
+            run(url, shared, 20, false);
+            run(url, shared, 20, true);
+
+            connections.clear();
+            long[] fresh = run(url, shared, calls, false);
+            int freshConnections = connections.size();
+            connections.clear();
+            long[] pooled = run(url, shared, calls, true);
+            int pooledConnections = connections.size();
+
+            report("new client per call", fresh, freshConnections);
+            report("shared ApiClient", pooled, pooledConnections);
+            System.out.println("shared client stats: " + shared.stats());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static long[] run(String url, ApiClient shared, int calls, boolean useShared)
+            throws IOException, InterruptedException {
+        long[] samples = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            HttpRequest request = shared.newRequest(url)
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"model\":\"stub\"}"))
+                    .build();
+            long start = System.nanoTime();
+            if (useShared) {
+                shared.send(request);
+            } else {
+                HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+            }
+            samples[i] = System.nanoTime() - start;
+        }
+        return samples;
+    }
+
+    private static void report(String label, long[] samples, int connections) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        System.out.printf("%-22s mean=%.3fms p50=%.3fms p99=%.3fms connections=%d%n", label, mean,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, connections);
+    }
+}
@@ -0,0 +1,95 @@
+package ac.kent;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+// Compares the old image path (ImageIO.read(url), re-encode as JPEG, read the JPEG back)
+// with streaming the body to disk and decoding it once. A local stub serves a 1024x1024
+// PNG, roughly what DALL-E returns. Allocation is the sum over all live threads, so the
+// HTTP client's own threads are included.
+// Usage: java ac.kent.ImageDownloadBenchmark [iterations]
+public class ImageDownloadBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        byte[] png = samplePng(1024, 1024);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.png", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(png);
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/image.png";
+        Path dir = Files.createTempDirectory("image-download-bench");
+
+        try {
+            System.out.printf("payload: %d KB PNG%n", png.length / 1024);
+            for (int round = 0; round < 2; round++) { // first round is warm-up
+                boolean print = round == 1;
+                measure("decode/re-encode", iterations, print, () -> {
+                    @SuppressWarnings("deprecation")
+                    BufferedImage image = ImageIO.read(new URL(url));
+                    File jpeg = dir.resolve("old.jpeg").toFile();
+                    ImageIO.write(image, "jpeg", jpeg);
+                    ImageIO.read(jpeg);
+                });
+                measure("stream to file", iterations, print, () -> {
+                    Path file = ImageDownloader.download(url, dir.resolve("new.png"));
+                    ImageIO.read(file.toFile());
+                });
+            }
+        } finally {
+            server.stop(0);
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static void measure(String label, int iterations, boolean print, Task task) throws Exception {
+        long[] samples = new long[iterations];
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (print) {
+            Arrays.sort(samples);
+            System.out.printf("%-18s p50=%.1fms p99=%.1fms alloc/op=%.1fMB%n", label, samples[iterations / 2] / 1e6,
+                    samples[(int) (iterations * 0.99)] / 1e6, allocated / (double) iterations / (1 << 20));
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds())).filter(b -> b > 0).sum();
+    }
+
+    private static byte[] samplePng(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(StubApiServer.sampleImage(width, height, 42), "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,37 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Downloads images by streaming the HTTP body straight into a file, with no
+// intermediate byte[] and no decode/re-encode. Files are written under a temporary
+// name and moved into place, so a half-written download is never visible and an
+// existing file (which may be hard-linked into the response cache) is replaced
+// rather than overwritten in place.
+final class ImageDownloader {
+    private ImageDownloader() {
+    }
+
+    static Path download(String imageUrl, Path target) throws IOException, InterruptedException {
+        if (imageUrl == null) {
+            throw new IOException("No image URL to download");
+        }
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.DOWNLOAD)) {
+            HttpRequest request = ApiClient.shared().newRequest(imageUrl).GET().build();
+            HttpResponse<Path> response = ApiClient.shared().send(request, HttpResponse.BodyHandlers.ofFile(tmp));
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("Image download failed with HTTP " + response.statusCode());
+            }
+            Metrics.addDownloadBytes(Files.size(tmp));
+            return span.succeeded(Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
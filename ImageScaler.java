@@ -0,0 +1,297 @@
+package ac.kent;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Downscaling for the scene preview and the gallery. scaleToFit() is an area average:
+// every output pixel is the mean of the source pixels it covers, weighted by how much of
+// each it covers, so 1024 -> 600 keeps detail without the aliasing of one-step bilinear.
+// It works a row at a time (each source row is averaged horizontally once, then blended
+// into the output rows it covers), reads the packed int, BGR and gray rasters that
+// decoding and filtering produce without per-pixel getRGB calls, and writes straight
+// into a TYPE_INT_RGB raster, from the pool when one is given. Alpha is dropped; scenes
+// are opaque.
+final class ImageScaler {
+    // Per-thread row buffers: the source row as packed RGB, that row averaged
+    // horizontally, and the output row being blended.
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    // Fixed point: weights are fractions of 1 << WEIGHT_BITS, and horizontally averaged
+    // channels keep REDUCED_BITS of fraction, so the vertical blend
+    // (255 << REDUCED_BITS) * (1 << WEIGHT_BITS) stays within an int.
+    private static final int WEIGHT_BITS = 12;
+    private static final int REDUCED_BITS = 6;
+
+    private ImageScaler() {
+    }
+
+    // The largest size with the image's aspect ratio that fits maxWidth x maxHeight; the
+    // image's own size when it fits already.
+    static Dimension fit(int width, int height, int maxWidth, int maxHeight) {
+        double scale = Math.min(1, Math.min(maxWidth / (double) width, maxHeight / (double) height));
+        return new Dimension(Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale)));
+    }
+
+    // Returns the image itself when it already fits.
+    static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        return scaleToFit(image, maxWidth, maxHeight, null);
+    }
+
+    // As above, drawing into a buffer from pool (when not null) instead of a new one.
+    static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight, BufferPool pool) {
+        Dimension size = fit(image.getWidth(), image.getHeight(), maxWidth, maxHeight);
+        if (size.width == image.getWidth() && size.height == image.getHeight()) {
+            return image;
+        }
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.SCALE)) {
+            BufferedImage out = pool != null ? pool.acquire(size.width, size.height)
+                    : new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+            areaAverage(image, out);
+            return span.succeeded(out);
+        }
+    }
+
+    private static void areaAverage(BufferedImage image, BufferedImage out) {
+        int srcWidth = image.getWidth();
+        int dstWidth = out.getWidth();
+        int dstHeight = out.getHeight();
+        Weights columns = new Weights(srcWidth, dstWidth);
+        Weights rows = new Weights(image.getHeight(), dstHeight);
+        Scratch scratch = SCRATCH.get();
+        int[] row = scratch.row(srcWidth);
+        int[] reduced = scratch.reduced(dstWidth * 3);
+        int[] acc = scratch.accumulator(dstWidth * 3);
+        int[] dst = pixels(out);
+
+        // Output rows overlap in at most one source row, so keeping the last reduced
+        // row means each source row is read and reduced once.
+        int reducedRow = -1;
+        for (int y = 0; y < dstHeight; y++) {
+            Arrays.fill(acc, 0, dstWidth * 3, 0);
+            for (int k = 0; k < rows.count[y]; k++) {
+                int sourceRow = rows.start[y] + k;
+                if (sourceRow != reducedRow) {
+                    readRow(image, sourceRow, row);
+                    reduce(row, columns, reduced, dstWidth);
+                    reducedRow = sourceRow;
+                }
+                int w = rows.weight[rows.offset[y] + k];
+                for (int i = 0; i < dstWidth * 3; i++) {
+                    acc[i] += w * reduced[i];
+                }
+            }
+            int offset = y * dstWidth;
+            for (int x = 0, a = 0; x < dstWidth; x++, a += 3) {
+                dst[offset + x] = (unscale(acc[a]) << 16) | (unscale(acc[a + 1]) << 8) | unscale(acc[a + 2]);
+            }
+        }
+    }
+
+    // Averages one source row horizontally into dstWidth RGB triples, each a channel
+    // value with REDUCED_BITS of fraction.
+    private static void reduce(int[] row, Weights columns, int[] reduced, int dstWidth) {
+        for (int x = 0, a = 0; x < dstWidth; x++, a += 3) {
+            int r = 0, g = 0, b = 0;
+            int source = columns.start[x];
+            int wi = columns.offset[x];
+            for (int k = 0; k < columns.count[x]; k++) {
+                int p = row[source + k];
+                int w = columns.weight[wi + k];
+                r += w * ((p >> 16) & 0xFF);
+                g += w * ((p >> 8) & 0xFF);
+                b += w * (p & 0xFF);
+            }
+            int shift = WEIGHT_BITS - REDUCED_BITS;
+            reduced[a] = r >> shift;
+            reduced[a + 1] = g >> shift;
+            reduced[a + 2] = b >> shift;
+        }
+    }
+
+    // A blended channel back to 0..255, rounded.
+    private static int unscale(int v) {
+        int i = (v + (1 << (WEIGHT_BITS + REDUCED_BITS - 1))) >> (WEIGHT_BITS + REDUCED_BITS);
+        return i > 255 ? 255 : i;
+    }
+
+    // One source row as packed 0xRRGGBB ints.
+    private static void readRow(BufferedImage image, int y, int[] row) {
+        int width = image.getWidth();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE: {
+                int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                if (data.length == width * image.getHeight()) {
+                    System.arraycopy(data, y * width, row, 0, width);
+                    return;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                if (data.length == width * image.getHeight() * 3) {
+                    for (int x = 0, i = y * width * 3; x < width; x++, i += 3) {
+                        row[x] = ((data[i + 2] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i] & 0xFF);
+                    }
+                    return;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                if (data.length == width * image.getHeight() * 4) {
+                    for (int x = 0, i = y * width * 4; x < width; x++, i += 4) {
+                        row[x] = ((data[i + 3] & 0xFF) << 16) | ((data[i + 2] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+                    }
+                    return;
+                }
+                break;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                if (data.length == width * image.getHeight()) {
+                    for (int x = 0, i = y * width; x < width; x++, i++) {
+                        int v = data[i] & 0xFF;
+                        row[x] = (v << 16) | (v << 8) | v;
+                    }
+                    return;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+        image.getRGB(0, y, width, 1, row, 0, width);
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // Which source pixels each output pixel along one axis covers, and by how much:
+    // output i spans source [i * ratio, (i + 1) * ratio), each weight is the overlap with
+    // one source pixel divided by ratio, so they sum to 1 (in fixed point).
+    private static final class Weights {
+        final int[] start;
+        final int[] count;
+        final int[] offset;
+        final int[] weight;
+
+        Weights(int srcSize, int dstSize) {
+            double ratio = srcSize / (double) dstSize;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            offset = new int[dstSize];
+            weight = new int[dstSize * ((int) Math.ceil(ratio) + 1)];
+            int next = 0;
+            for (int i = 0; i < dstSize; i++) {
+                double from = i * ratio;
+                double to = Math.min(srcSize, (i + 1) * ratio);
+                int first = (int) from;
+                int last = Math.min(srcSize - 1, (int) Math.ceil(to) - 1);
+                start[i] = first;
+                count[i] = last - first + 1;
+                offset[i] = next;
+                // Rounded, with the rounding error put on the largest weight so they sum
+                // to exactly 1 << WEIGHT_BITS.
+                int total = 0;
+                int largest = next;
+                for (int j = first; j <= last; j++) {
+                    int w = (int) Math.round((Math.min(to, j + 1) - Math.max(from, j)) / ratio * (1 << WEIGHT_BITS));
+                    if (w > weight[largest]) {
+                        largest = next;
+                    }
+                    weight[next++] = w;
+                    total += w;
+                }
+                weight[largest] += (1 << WEIGHT_BITS) - total;
+            }
+        }
+    }
+
+    private static final class Scratch {
+        private int[] row = new int[0];
+        private int[] reduced = new int[0];
+        private int[] accumulator = new int[0];
+
+        int[] row(int width) {
+            if (row.length < width) {
+                row = new int[width];
+            }
+            return row;
+        }
+
+        int[] reduced(int length) {
+            if (reduced.length < length) {
+                reduced = new int[length];
+            }
+            return reduced;
+        }
+
+        int[] accumulator(int length) {
+            if (accumulator.length < length) {
+                accumulator = new int[length];
+            }
+            return accumulator;
+        }
+    }
+
+    // Recycled TYPE_INT_RGB buffers, keyed by size, holding at most maxBytes of idle
+    // pixels. A buffer must only be released once nothing draws from it any more;
+    // acquire() hands it out with its old pixels, for a caller that overwrites all of them.
+    static final class BufferPool {
+        private final long maxBytes;
+        private final Map<Long, ArrayDeque<BufferedImage>> idle = new HashMap<>();
+        private long idleBytes;
+        private long reused;
+        private long allocated;
+
+        BufferPool(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized BufferedImage acquire(int width, int height) {
+            ArrayDeque<BufferedImage> free = idle.get(sizeKey(width, height));
+            BufferedImage image = free == null ? null : free.poll();
+            if (image != null) {
+                idleBytes -= bytes(image);
+                reused++;
+                return image;
+            }
+            allocated++;
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        synchronized void release(BufferedImage image) {
+            if (image.getType() != BufferedImage.TYPE_INT_RGB || idleBytes + bytes(image) > maxBytes) {
+                return;
+            }
+            idle.computeIfAbsent(sizeKey(image.getWidth(), image.getHeight()), key -> new ArrayDeque<>()).push(image);
+            idleBytes += bytes(image);
+        }
+
+        synchronized void clear() {
+            idle.clear();
+            idleBytes = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("reused=%d allocated=%d idleKB=%d", reused, allocated, idleBytes / 1024);
+        }
+
+        private static long sizeKey(int width, int height) {
+            return ((long) width << 32) | height;
+        }
+
+        private static long bytes(BufferedImage image) {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+    }
+}
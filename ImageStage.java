@@ -0,0 +1,84 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Generates the images for a story concurrently. All descriptions are submitted at
+// once to a bounded pool and each result is handed back as soon as it completes,
+// so wall-clock time tracks the slowest image rather than the sum of all of them.
+final class ImageStage {
+    static final int DEFAULT_CONCURRENCY = Integer.getInteger("filmassistant.images.concurrency", 5);
+
+    // Produces the image for one scene: the original on disk plus its decoded pixels.
+    interface ImageGenerator {
+        SceneImage generate(int index, String imageDescription) throws Exception;
+    }
+
+    static final class SceneImage {
+        final int index;
+        final String description;
+        final Path imageFile;
+        final BufferedImage image;
+
+        SceneImage(int index, String description, Path imageFile, BufferedImage image) {
+            this.index = index;
+            this.description = description;
+            this.imageFile = imageFile;
+            this.image = image;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    ImageStage(int concurrency) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread t = new Thread(r, "image-stage-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Blocks until every description has been processed. Results arrive on the calling
+    // thread in completion order, tagged with their scene index. If any image fails the
+    // remaining ones are still delivered and the first failure is rethrown at the end.
+    void run(String[] descriptions, ImageGenerator generator, Consumer<SceneImage> onResult)
+            throws InterruptedException, ExecutionException {
+        CompletionService<SceneImage> completion = new ExecutorCompletionService<>(executor);
+        Future<?>[] futures = new Future<?>[descriptions.length];
+        for (int i = 0; i < descriptions.length; i++) {
+            int index = i;
+            String description = descriptions[i];
+            futures[i] = completion.submit(() -> generator.generate(index, description));
+        }
+
+        ExecutionException firstFailure = null;
+        try {
+            for (int i = 0; i < descriptions.length; i++) {
+                try {
+                    onResult.accept(completion.take().get());
+                } catch (ExecutionException e) {
+                    if (firstFailure == null) {
+                        firstFailure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ac.kent;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+// Pure-Java renderer for a FilterChain, used when the OpenCV native library is not
+// available. Colour matrix, vignette and grain are applied in a single loop over the
+// packed RGB pixels; per image it allocates only the output raster and one row of
+// vignette terms.
+final class JavaFilterRenderer {
+    // Scratch image for sources that are not already packed TYPE_INT_RGB.
+    private static final ThreadLocal<BufferedImage[]> SCRATCH = ThreadLocal.withInitial(() -> new BufferedImage[1]);
+
+    private JavaFilterRenderer() {
+    }
+
+    static BufferedImage apply(BufferedImage image, FilterChain chain) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] src = rgbPixels(image);
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] dst = ((DataBufferInt) out.getRaster().getDataBuffer()).getData();
+
+        double[] m = chain.matrix;
+        float m0 = (float) m[0], m1 = (float) m[1], m2 = (float) m[2], m3 = (float) m[3];
+        float m4 = (float) m[4], m5 = (float) m[5], m6 = (float) m[6], m7 = (float) m[7];
+        float m8 = (float) m[8], m9 = (float) m[9], m10 = (float) m[10], m11 = (float) m[11];
+        boolean vignette = chain.vignette > 0;
+        boolean grain = chain.grain > 0;
+        float grainAmount = (float) chain.grain;
+
+        // The vignette is separable into a row term and a column term.
+        float[] columnTerm = new float[vignette ? width : 0];
+        for (int x = 0; x < columnTerm.length; x++) {
+            float dx = (x - (width - 1) / 2f) / (width / 2f);
+            columnTerm[x] = (float) (chain.vignette * dx * dx / 2);
+        }
+
+        for (int y = 0; y < height; y++) {
+            float rowTerm = 0;
+            if (vignette) {
+                float dy = (y - (height - 1) / 2f) / (height / 2f);
+                rowTerm = (float) (chain.vignette * dy * dy / 2);
+            }
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int p = src[offset + x];
+                int r = (p >> 16) & 0xFF;
+                int g = (p >> 8) & 0xFF;
+                int b = p & 0xFF;
+                // Saturate after the colour matrix, as OpenCV does between its 8-bit passes,
+                // so both renderers agree.
+                float nr = clamp(m0 * r + m1 * g + m2 * b + m3);
+                float ng = clamp(m4 * r + m5 * g + m6 * b + m7);
+                float nb = clamp(m8 * r + m9 * g + m10 * b + m11);
+                if (vignette) {
+                    float factor = Math.max(0f, 1f - rowTerm - columnTerm[x]);
+                    nr *= factor;
+                    ng *= factor;
+                    nb *= factor;
+                }
+                if (grain) {
+                    float noise = grainAmount * (float) FilterChain.grainNoise(x, y);
+                    nr += noise;
+                    ng += noise;
+                    nb += noise;
+                }
+                dst[offset + x] = (clamp(nr) << 16) | (clamp(ng) << 8) | clamp(nb);
+            }
+        }
+        return out;
+    }
+
+    private static int clamp(float v) {
+        int i = Math.round(v);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    private static int[] rgbPixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            if (data.length == width * height) {
+                return data;
+            }
+        }
+        BufferedImage[] scratch = SCRATCH.get();
+        if (scratch[0] == null || scratch[0].getWidth() != width || scratch[0].getHeight() != height) {
+            scratch[0] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = scratch[0].createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return ((DataBufferInt) scratch[0].getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,108 @@
+package ac.kent;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+// Compares JsonWriter/JsonReader with org.json on a large story: building the scenes
+// request body (org.json's JSONObject.toString() is the correctly-escaping baseline; the
+// old string concatenation was not valid JSON for such a story) and pulling the message
+// content out of a chat completion. Allocation is measured on the calling thread.
+// Usage: java ac.kent.JsonCodecBenchmark [storyKB] [iterations]
+public class JsonCodecBenchmark {
+    private static final String PARAGRAPH = "\"Don't open it,\" she said, and the lamp\\ flickered.\n"
+            + "He read the label twice \u2014 caf\u00e9 \u00a9 1952 \u2014 then set the box down by the door.\t"
+            + "Outside, the tide kept its own time.\n\n";
+
+    public static void main(String[] args) {
+        int storyKb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        StringBuilder storyBuilder = new StringBuilder();
+        while (storyBuilder.length() < storyKb * 1024) {
+            storyBuilder.append(PARAGRAPH);
+        }
+        String story = storyBuilder.toString();
+        String system = "I will give you a story on a topic and you will give me image descriptions.";
+        String response = new JSONObject()
+                .put("id", "chatcmpl-123")
+                .put("object", "chat.completion")
+                .put("created", 1700000000)
+                .put("model", "gpt-3.5-turbo")
+                .put("choices", new JSONArray().put(new JSONObject()
+                        .put("index", 0)
+                        .put("message", new JSONObject().put("role", "assistant").put("content", story))
+                        .put("finish_reason", "stop")))
+                .put("usage", new JSONObject().put("prompt_tokens", 20).put("completion_tokens", 9000))
+                .toString();
+
+        // Both sides must agree before their speed means anything.
+        String written = writeWithCodec(system, story);
+        String parsed = new JSONObject(written).getJSONArray("messages").getJSONObject(1).getString("content");
+        if (!parsed.equals("Story: " + story) || !readWithCodec(response).equals(readWithOrgJson(response))) {
+            throw new IllegalStateException("JsonWriter/JsonReader disagree with org.json");
+        }
+
+        System.out.printf("story: %d KB, response: %d KB%n", story.length() / 1024, response.length() / 1024);
+        for (int round = 0; round < 2; round++) { // first round is warm-up
+            boolean print = round == 1;
+            measure("write org.json", iterations, print, () -> writeWithOrgJson(system, story));
+            measure("write JsonWriter", iterations, print, () -> writeWithCodec(system, story));
+            measure("read org.json", iterations, print, () -> readWithOrgJson(response));
+            measure("read JsonReader", iterations, print, () -> readWithCodec(response));
+        }
+    }
+
+    private static String writeWithOrgJson(String system, String story) {
+        return new JSONObject()
+                .put("model", "gpt-3.5-turbo")
+                .put("messages", new JSONArray()
+                        .put(new JSONObject().put("role", "system").put("content", system))
+                        .put(new JSONObject().put("role", "user").put("content", "Story: " + story)))
+                .toString();
+    }
+
+    private static String writeWithCodec(String system, String story) {
+        return new JsonWriter(story.length() + story.length() / 8 + 256).beginObject()
+                .name("model").value("gpt-3.5-turbo")
+                .name("messages").beginArray()
+                .beginObject().name("role").value("system").name("content").value(system).endObject()
+                .beginObject().name("role").value("user").name("content").value("Story: " + story).endObject()
+                .endArray()
+                .endObject().toString();
+    }
+
+    private static String readWithOrgJson(String response) {
+        return new JSONObject(response).getJSONArray("choices").getJSONObject(0)
+                .getJSONObject("message").getString("content");
+    }
+
+    private static String readWithCodec(String response) {
+        return JsonReader.findString(response, "choices", 0, "message", "content");
+    }
+
+    private static void measure(String label, int iterations, boolean print, Supplier<String> task) {
+        long[] samples = new long[iterations];
+        long sink = 0;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink += task.get().length();
+            samples[i] = System.nanoTime() - start;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (print) {
+            Arrays.sort(samples);
+            System.out.printf("%-18s p50=%.1fus p99=%.1fus alloc/op=%.0fKB (%d)%n", label, samples[iterations / 2] / 1e3,
+                    samples[(int) (iterations * 0.99)] / 1e3, allocated / (double) iterations / 1024, sink % 10);
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
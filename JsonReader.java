@@ -0,0 +1,298 @@
+package ac.kent;
+
+import org.json.JSONException;
+
+// A pull parser over a JSON document held in a String. Callers step through the tokens
+// they need and skip the rest without materialising them, so pulling one field out of a
+// large response allocates only that field's value. Malformed input raises
+// JSONException, like org.json. Separators are not validated: the parser is for reading
+// API responses, not for checking them.
+final class JsonReader {
+    enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END }
+
+    private final String json;
+    private int pos;
+
+    JsonReader(String json) {
+        this.json = json;
+    }
+
+    // The string at path, e.g. ("choices", 0, "message", "content"), where String steps are
+    // object members and Integer steps are array indexes. Returns null when any step is
+    // missing or the value there is not a string.
+    static String findString(String json, Object... path) {
+        JsonReader reader = locate(json, path);
+        return reader != null && reader.peek() == Token.STRING ? reader.nextString() : null;
+    }
+
+    // The integer at path, or defaultValue when it is missing or not a number.
+    static long findLong(String json, long defaultValue, Object... path) {
+        JsonReader reader = locate(json, path);
+        return reader != null && reader.peek() == Token.NUMBER ? reader.nextLong() : defaultValue;
+    }
+
+    // A reader positioned on the value at path, or null when a step is missing.
+    private static JsonReader locate(String json, Object... path) {
+        JsonReader reader = new JsonReader(json);
+        for (Object step : path) {
+            if (step instanceof Integer) {
+                if (reader.peek() != Token.BEGIN_ARRAY) {
+                    return null;
+                }
+                reader.beginArray();
+                for (int i = (Integer) step; i > 0 && reader.hasNext(); i--) {
+                    reader.skipValue();
+                }
+                if (!reader.hasNext()) {
+                    return null;
+                }
+            } else {
+                if (reader.peek() != Token.BEGIN_OBJECT) {
+                    return null;
+                }
+                reader.beginObject();
+                boolean found = false;
+                while (reader.hasNext()) {
+                    if (reader.nextNameIs((String) step)) {
+                        found = true;
+                        break;
+                    }
+                    reader.skipValue();
+                }
+                if (!found) {
+                    return null;
+                }
+            }
+        }
+        return reader;
+    }
+
+    Token peek() {
+        skipSeparators();
+        if (pos >= json.length()) {
+            return Token.END;
+        }
+        switch (json.charAt(pos)) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '}':
+                return Token.END_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case ']':
+                return Token.END_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                return Token.NUMBER;
+        }
+    }
+
+    void beginObject() {
+        expect('{');
+    }
+
+    void endObject() {
+        expect('}');
+    }
+
+    void beginArray() {
+        expect('[');
+    }
+
+    void endArray() {
+        expect(']');
+    }
+
+    // True while the current object or array has more elements.
+    boolean hasNext() {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END;
+    }
+
+    String nextName() {
+        return nextString();
+    }
+
+    // Consumes the next member name and compares it without allocating, unless it is escaped.
+    boolean nextNameIs(String name) {
+        skipSeparators();
+        if (pos < json.length() && json.charAt(pos) == '"') {
+            int start = pos + 1;
+            int end = start;
+            while (end < json.length() && json.charAt(end) != '"' && json.charAt(end) != '\\') {
+                end++;
+            }
+            if (end < json.length() && json.charAt(end) == '"') {
+                pos = end + 1;
+                return end - start == name.length() && json.startsWith(name, start);
+            }
+        }
+        return nextString().equals(name);
+    }
+
+    String nextString() {
+        expect('"');
+        StringBuilder value = null;
+        int start = pos;
+        while (true) {
+            if (pos >= json.length()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = json.charAt(pos);
+            if (c == '"') {
+                String tail = json.substring(start, pos++);
+                return value == null ? tail : value.append(tail).toString();
+            }
+            if (c != '\\') {
+                pos++;
+                continue;
+            }
+            if (value == null) {
+                // The unescaped value is never longer than the raw one, so one allocation will do.
+                value = new StringBuilder(closingQuote(pos) - start);
+            }
+            value.append(json, start, pos);
+            if (pos + 1 >= json.length()) {
+                throw syntaxError("Unterminated escape");
+            }
+            char escaped = json.charAt(pos + 1);
+            pos += 2;
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw syntaxError("Truncated \\u escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(json, pos, pos + 4, 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Bad \\u escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    value.append(escaped); // \" \\ \/
+            }
+            start = pos;
+        }
+    }
+
+    // A number, truncated towards zero if it has a fraction or exponent.
+    long nextLong() {
+        skipSeparators();
+        int start = pos;
+        skipLiteral();
+        String literal = json.substring(start, pos);
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(literal);
+            } catch (NumberFormatException notANumber) {
+                throw syntaxError("Expected a number");
+            }
+        }
+    }
+
+    // Skips one value of any kind, including a whole nested object or array.
+    void skipValue() {
+        Token token = peek();
+        switch (token) {
+            case STRING:
+                skipString();
+                return;
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                int depth = 0;
+                do {
+                    char c = json.charAt(pos);
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    pos++;
+                } while (depth > 0 && pos < json.length());
+                if (depth > 0) {
+                    throw syntaxError("Unterminated " + (token == Token.BEGIN_OBJECT ? "object" : "array"));
+                }
+                return;
+            case END_OBJECT:
+            case END_ARRAY:
+            case END:
+                throw syntaxError("No value to skip");
+            default:
+                skipLiteral(); // number, true, false or null
+        }
+    }
+
+    private void skipLiteral() {
+        while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+            pos++;
+        }
+    }
+
+    private void skipString() {
+        pos = closingQuote(pos + 1) + 1;
+    }
+
+    // Index of the quote ending the string whose content starts at or before from.
+    private int closingQuote(int from) {
+        int i = from;
+        while (i < json.length()) {
+            char c = json.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i - 1;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipSeparators() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ',' && c != ':') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void expect(char c) {
+        skipSeparators();
+        if (pos >= json.length() || json.charAt(pos) != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + pos);
+    }
+}
@@ -0,0 +1,175 @@
+package ac.kent;
+
+// Writes JSON straight into a StringBuilder, escaping every string, with no intermediate
+// object tree. Calls mirror the document: beginObject(), name("model").value("..."), ...,
+// endObject(). Commas and colons are inserted automatically.
+final class JsonWriter {
+    private static final int MAX_DEPTH = 64;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder out;
+    // Bit n is set once the container at depth n has at least one element.
+    private long nonEmpty;
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter() {
+        this(256);
+    }
+
+    // capacity should leave room for escapes, or the builder copies itself on growth.
+    JsonWriter(int capacity) {
+        this.out = new StringBuilder(capacity);
+    }
+
+    JsonWriter beginObject() {
+        beforeValue();
+        out.append('{');
+        push();
+        return this;
+    }
+
+    JsonWriter endObject() {
+        pop();
+        out.append('}');
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        beforeValue();
+        out.append('[');
+        push();
+        return this;
+    }
+
+    JsonWriter endArray() {
+        pop();
+        out.append(']');
+        return this;
+    }
+
+    JsonWriter name(String name) {
+        if (afterName || depth == 0) {
+            throw new IllegalStateException("name() must be called inside an object, before a value");
+        }
+        separate();
+        writeString(name);
+        out.append(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            out.append("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    JsonWriter value(boolean value) {
+        beforeValue();
+        out.append(value);
+        return this;
+    }
+
+    JsonWriter value(long value) {
+        beforeValue();
+        out.append(value);
+        return this;
+    }
+
+    JsonWriter value(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON has no representation for " + value);
+        }
+        beforeValue();
+        out.append(value);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        if (depth != 0) {
+            throw new IllegalStateException("Unclosed object or array");
+        }
+        return out.toString();
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            separate();
+        }
+    }
+
+    private void separate() {
+        long bit = 1L << (depth - 1);
+        if ((nonEmpty & bit) != 0) {
+            out.append(',');
+        }
+        nonEmpty |= bit;
+    }
+
+    private void push() {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Nesting deeper than " + MAX_DEPTH);
+        }
+        depth++;
+        nonEmpty &= ~(1L << (depth - 1));
+    }
+
+    private void pop() {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("Nothing to close here");
+        }
+        depth--;
+    }
+
+    // Runs of characters that need no escaping are appended in one call.
+    private void writeString(String s) {
+        out.append('"');
+        int start = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            out.append(s, start, i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    // Other control characters, and the JavaScript line separators.
+                    out.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xF])
+                            .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.append(s, start, length);
+        out.append('"');
+    }
+}
@@ -3,27 +3,34 @@ package ac.kent;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URI;
-import java.net.http.HttpClient;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import javax.imageio.ImageIO;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
 import org.json.JSONException;
 
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
 import java.util.List;
-
-
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class Main {
     private JFrame frame;
@@ -41,10 +48,67 @@ public class Main {
     private JTextArea imageCaption;
 
     private JButton generateButton;
+    private JButton cancelButton;
     private JMenuBar menuBar;
+    // EDT only: saves and exports still reading the storyboard's files. While any runs,
+    // Generate and Open, which would replace the storyboard and delete those files, are
+    // off, and so are Save and Export.
+    private final List<Component> storyboardControls = new ArrayList<>();
+    private int storyboardReaders;
 
     private String baseDataPath;
 
+    // Stream chat completions token by token; set -Dfilmassistant.stream=false for the blocking calls.
+    private static final boolean STREAMING = !"false".equals(System.getProperty("filmassistant.stream"));
+    // Overlap scene extraction and image generation with story writing; set -Dfilmassistant.pipeline=false
+    // to extract all scenes from the finished story and then generate the images.
+    private static final boolean PIPELINED = !"false".equals(System.getProperty("filmassistant.pipeline"));
+    // Log prompts and full response bodies. Off by default: stories and responses are large,
+    // and Metrics covers timings and counts.
+    private static final boolean VERBOSE = Boolean.getBoolean("filmassistant.verbose");
+
+    private final ImageStage imageStage = new ImageStage(ImageStage.DEFAULT_CONCURRENCY);
+
+    // Decoded originals of the current story, so a filter change re-renders without the network.
+    private final SceneStore sceneStore = new SceneStore(SceneStore.DEFAULT_BUDGET);
+    private final ExecutorService renderExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread t = new Thread(runnable, "scene-render");
+                t.setDaemon(true);
+                return t;
+            });
+    // Bumped on every filter change and new generation so renders for the previous one are discarded.
+    private final AtomicInteger renderGeneration = new AtomicInteger();
+    // Large-view renders are drawn into recycled buffers instead of a new raster each time.
+    private final ImageScaler.BufferPool displayBuffers = new ImageScaler.BufferPool(
+            Long.getLong("filmassistant.display.poolMB", 8) << 20);
+    // EDT only: rendered images per scene, view size and HiDPI scale, and the scene shown in imageLabel.
+    private SceneIconCache sceneIcons;
+    private int displayedScene = -1;
+    // Filter preset for off-EDT renders; written on the EDT whenever the combo changes.
+    private volatile String currentFilter = FilterChain.PRESETS[0];
+
+    private SceneGallery sceneGallery;
+    // EDT only: the latest generation; starting another or pressing Cancel cancels it.
+    private GenerationSession session;
+    // EDT only: what the current storyboard was made from, for saving it as a project.
+    private String storyTopic = "";
+    private String storyCreativity = "";
+    private String modifiedTopic = "";
+    private String storyText = "";
+    // The project the current scenes were opened from or last saved to. Its thumbnails
+    // and filtered images are used as long as its filter is the one selected.
+    private volatile ProjectFile project;
+    private final ThumbnailScaler thumbnailScaler = new ThumbnailScaler(64);
+
+    // Endpoints, key and models; see OpenAiProvider for the properties that choose them.
+    static final GenerationProvider PROVIDER = OpenAiProvider.configured();
+
+    private static final String CREATIVITY_PROMPT = "I will give a topic of a story and ask you to rewrite the topic according to the creativity level. Keep the essence of the story same or different according to the creativity level. For low level, do not make much changes. For high level, you must think outside the box. Do not write the story, just give me the updated topic according to the creativity level.";
+    private static final String STORY_PROMPT = "You an expert story write who will generate a short story on topic";
+    // The two prompts above as one JSON-mode call; see RequestPlanner.
+    private static final String TOPIC_AND_STORY_PROMPT = "I will give a topic of a story and a creativity level. First rewrite the topic according to the creativity level. Keep the essence of the story same or different according to the creativity level. For low level, do not make much changes. For high level, you must think outside the box. Then, as an expert story writer, write a short story on the rewritten topic. Answer with a JSON object with two string members, in this order: \"topic\" for the rewritten topic and \"story\" for the story.";
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     public Main() {
         frame = new JFrame("Film Assistant");
@@ -53,7 +117,7 @@ public class Main {
         creativityLevel = new JComboBox(new String[]{"Low", "Medium", "High"});
 
         filterLabel = new JLabel("Filter Type:");
-        filterType = new JComboBox(new String[]{"None", "Grayscale", "Sepia"});
+        filterType = new JComboBox(FilterChain.PRESETS);
 
         inputField = new JTextField();
 
@@ -62,13 +126,20 @@ public class Main {
         storyArea.setWrapStyleWord(true);
 
         imageLabel = new JLabel();
+        sceneIcons = new SceneIconCache(imageLabel, displayBuffers, Long.getLong("filmassistant.display.cacheMB", 24) << 20);
         imageCaption = new JTextArea();
         imageCaption.setLineWrap(true);
         imageCaption.setWrapStyleWord(true);
 
         generateButton = new JButton("Generate Story");
+        storyboardControls.add(generateButton);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
         menuBar = new JMenuBar();
 
+        sceneGallery = new SceneGallery(this::loadThumbnail, renderExecutor);
+        sceneGallery.setSelectionListener(this::showScene);
+
         // Setup the menu bar
         setupMenuBar();
 
@@ -78,12 +149,40 @@ public class Main {
         // Add button listener for generating the story
         setupButtonListener();
 
+        // Changing the filter re-renders the current scenes in place
+        filterType.addActionListener(e -> refilterScenes());
+
+        // Resizing re-renders the shown scene for the new view size once it settles
+        Timer resized = new Timer(150, e -> {
+            if (displayedScene >= 0) {
+                showScene(displayedScene);
+            }
+        });
+        resized.setRepeats(false);
+        imageLabel.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                resized.restart();
+            }
+        });
+
         // Set default close operation and pack
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLocationRelativeTo(null);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                System.out.println("First frame " + Startup.sinceLaunchMillis() + " ms after launch");
+            }
+        });
         frame.setVisible(true);
 
         baseDataPath = System.getProperty("user.dir") + "/data/";
+        Path originals = Paths.get(baseDataPath, "original");
+        CompletableFuture.runAsync(() -> {
+            GenerationSession.clearStaging(originals);
+            GenerationSession.pruneDirectories(originals, GenerationSession.KEEP_DIRECTORIES);
+        }, renderExecutor);
 
         // frame.setSize(1200, 750);
     }
@@ -91,6 +190,23 @@ public class Main {
     private void setupMenuBar() {
         JMenu fileMenu = new JMenu("File");
         JMenu helpMenu = new JMenu("Help");
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        JMenuItem openItem = new JMenuItem("Open Project...");
+        openItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, shortcut));
+        openItem.addActionListener(e -> openProject());
+        JMenuItem saveItem = new JMenuItem("Save Project...");
+        saveItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, shortcut));
+        saveItem.addActionListener(e -> saveProject());
+        JMenuItem animaticItem = new JMenuItem("Export Animatic...");
+        animaticItem.addActionListener(e -> exportStoryboard(true));
+        JMenuItem contactSheetItem = new JMenuItem("Export Contact Sheet...");
+        contactSheetItem.addActionListener(e -> exportStoryboard(false));
+        storyboardControls.addAll(List.of(openItem, saveItem, animaticItem, contactSheetItem));
+        fileMenu.add(openItem);
+        fileMenu.add(saveItem);
+        fileMenu.addSeparator();
+        fileMenu.add(animaticItem);
+        fileMenu.add(contactSheetItem);
         menuBar.add(fileMenu);
         menuBar.add(helpMenu);
         frame.setJMenuBar(menuBar);
@@ -131,10 +247,14 @@ public class Main {
         eastPanel.add(imageLabel, BorderLayout.CENTER);
         eastPanel.add(captionScrollPane, BorderLayout.SOUTH); // Use the initialized captionScrollPane
 
-        // Bottom panel for the generate button with padding
-        JPanel bottomPanel = new JPanel();
+        // Bottom panel for the scene gallery and the generate button with padding
+        JPanel bottomPanel = new JPanel(new BorderLayout(5, 5));
         bottomPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10)); // Add padding around the bottom panel
-        bottomPanel.add(generateButton);
+        bottomPanel.add(sceneGallery.component(), BorderLayout.CENTER);
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(generateButton);
+        buttonPanel.add(cancelButton);
+        bottomPanel.add(buttonPanel, BorderLayout.SOUTH);
 
         // Add sub-panels to main panel
         mainPanel.add(topPanel, BorderLayout.NORTH);
@@ -153,358 +273,931 @@ public class Main {
     }
 
     private void setupButtonListener() {
+        // Cancelling keeps whatever the session has already shown.
+        cancelButton.addActionListener(e -> {
+            if (session != null) {
+                session.cancel();
+            }
+            cancelButton.setEnabled(false);
+        });
+
         generateButton.addActionListener(e -> {
             String topic = inputField.getText();
             String creativityLevel = (String) this.creativityLevel.getSelectedItem();
-
-            new SwingWorker<Void, String[]>() {
+            long clicked = System.nanoTime();
+            GenerationSession session = startSession();
+            clearStoryboard();
+            storyTopic = topic;
+            storyCreativity = creativityLevel;
+            cancelButton.setEnabled(true);
+
+            ImageStage.ImageGenerator generator = (index, description) -> generateSceneImage(session, index, description);
+            SwingWorker<Void, ImageStage.SceneImage> worker = new SwingWorker<Void, ImageStage.SceneImage>() {
                 private String story;
 
                 @Override
                 protected Void doInBackground() throws Exception {
                     System.out.println("Creativity Level: " + creativityLevel);
 
-                    String modifiedTopic = modifyTopicAccordingToCreativity(topic, creativityLevel);
-
-                    System.out.println("Modified Topic: " + modifiedTopic);
+                    if (!PIPELINED) {
+                        String story = writeStory();
+                        String[] imageDescriptions = generateImageDescriptionsFromStory(story);
 
-                    String story = generateStoryOnTopic(modifiedTopic);
-
-                    String storyPlusTopic = "Topic: " + modifiedTopic + "\n\n" + story;
-
-                    storyArea.setText(storyPlusTopic);
-
-
-                    String[] imageDescriptions = generateImageDescriptionsFromStory(story);
+                        // Fan out all image requests at once; each one is published as it finishes.
+                        imageStage.run(imageDescriptions, generator, this::publish);
+                        return null;
+                    }
 
-                    for (String imageDescription : imageDescriptions) {
-                        String imageURL = generateImageFromImageDescription(imageDescription);
+                    // Scene extraction and image generation start on the first paragraphs
+                    // while the rest of the story is still being written.
+                    StoryPipeline pipeline = new StoryPipeline(Main::generateImageDescriptionsFromStory,
+                            generator, ImageStage.DEFAULT_CONCURRENCY, this::publish);
+                    try {
+                        if (STREAMING) {
+                            writeStory(pipeline::append);
+                        } else {
+                            pipeline.append(writeStory());
+                        }
+                        pipeline.finish();
+                    } catch (Exception ex) {
+                        pipeline.cancel();
+                        throw ex;
+                    }
+                    return null;
+                }
 
+                private String writeStory() throws Exception {
+                    return writeStory(delta -> { });
+                }
 
-                        String[] imageDetail = {
-                                imageDescription,
-                                imageURL
-                        };
-                        publish(imageDetail);
+                // Runs the creativity rewrite and the story, showing both in storyArea, and
+                // returns the story. Streamed story tokens are also passed to onStoryDelta.
+                private String writeStory(ChatStream.DeltaListener onStoryDelta) throws Exception {
+                    RequestPlanner.TopicAndStory written;
+                    if (STREAMING) {
+                        // Tokens are appended to storyArea in batches on the EDT as they arrive.
+                        StreamingTextAppender appender = new StreamingTextAppender(storyArea, session::isActive);
+                        appender.append("Topic: ");
+                        boolean[] firstToken = {true};
+                        written = writeTopicAndStory(topic, creativityLevel, true, appender::append, delta -> {
+                            if (firstToken[0]) {
+                                firstToken[0] = false;
+                                System.out.printf("First story token %d ms after Generate%s%n",
+                                        (System.nanoTime() - clicked) / 1_000_000,
+                                        Startup.isPrewarmed() ? "" : " (startup prewarm still running)");
+                                appender.append("\n\n");
+                            }
+                            appender.append(delta);
+                            onStoryDelta.onDelta(delta);
+                        }, session::onCancel);
+                    } else {
+                        written = writeTopicAndStory(topic, creativityLevel, false, delta -> { }, delta -> { },
+                                session::onCancel);
+                        String storyPlusTopic = "Topic: " + written.topic + "\n\n" + written.story;
+                        SwingUtilities.invokeLater(() -> {
+                            if (session.isActive()) {
+                                storyArea.setText(storyPlusTopic);
+                            }
+                        });
                     }
-                    return null;
+                    if (VERBOSE) {
+                        System.out.println("Modified Topic: " + written.topic);
+                    }
+                    SwingUtilities.invokeLater(() -> {
+                        if (session.isActive()) {
+                            Main.this.modifiedTopic = written.topic;
+                            storyText = written.story;
+                        }
+                    });
+                    return written.story;
                 }
 
                 @Override
-                protected void process(List<String[]> imageDetails) {
-                    for (int i = 0; i < imageDetails.size(); i++) {
-                        String[] imageDetail = imageDetails.get(i);
-                        String imageDescription = imageDetail[0]; // of same image
-                        String imageURL = imageDetail[1]; // of same image
-
-                        imageCaption.setText(imageDescription);
-                        loadImage(imageURL, i);
+                protected void process(List<ImageStage.SceneImage> sceneImages) {
+                    if (!session.isActive()) {
+                        return;
+                    }
+                    for (ImageStage.SceneImage sceneImage : sceneImages) {
+                        sceneStore.put(sceneImage);
+                        sceneGallery.addScene(sceneImage.index, sceneImage.description);
                     }
                 }
 
                 @Override
                 protected void done() {
-                    //do nothing
-                    return;
+                    System.out.println("Response cache: " + ResponseCache.shared().stats());
+                    System.out.println("Requests: " + RequestScheduler.shared().stats());
+                    if (!session.isActive()) {
+                        System.out.println("Generation " + session.id + " cancelled");
+                        return;
+                    }
+                    session.markFinished();
+                    cancelButton.setEnabled(false);
+                    try {
+                        get();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ex) {
+                        ex.getCause().printStackTrace();
+                        JOptionPane.showMessageDialog(frame, "Generation failed: " + ex.getCause().getMessage(),
+                                "Film Assistant", JOptionPane.ERROR_MESSAGE);
+                    }
                 }
-            }.execute();
+            };
+            // Interrupting the worker aborts its API calls and, through ImageStage and
+            // StoryPipeline, the image jobs and downloads it started.
+            session.onCancel(() -> worker.cancel(true));
+            worker.execute();
         });
     }
 
-    private static void writeImageToDisk(String imageUrl, String imagePath) {
-        try {
-            URL url = new URL(imageUrl);
-            BufferedImage image = ImageIO.read(url);
-            ImageIO.write(image, "jpeg", new File(imagePath));
-            System.out.println("Image saved successfully.");
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void clearStoryboard() {
+        project = null;
+        storyTopic = "";
+        storyCreativity = "";
+        modifiedTopic = "";
+        storyText = "";
+        storyArea.setText("");
+        sceneStore.clear();
+        sceneIcons.clear();
+        thumbnailScaler.clear();
+        sceneGallery.clear();
+        displayedScene = -1;
+        sceneIcons.show(null);
+        imageCaption.setText("");
+    }
+
+    // Cancels the previous generation and drops any renders still running for it. Its
+    // files are deleted too (its scenes are about to be cleared from the window) if it
+    // was cancelled or has been saved; a finished, unsaved storyboard keeps its images.
+    private GenerationSession startSession() {
+        Path originals = Paths.get(baseDataPath, "original");
+        GenerationSession previous = session;
+        if (previous != null) {
+            boolean keep = previous.hasUnsavedResult();
+            previous.cancel();
+            if (keep) {
+                System.out.println("Kept the images of unsaved generation " + previous.id + " in " + previous.directory);
+            }
+            // One task, so the delete and the prune never walk the same directory at once.
+            CompletableFuture.runAsync(() -> {
+                if (!keep) {
+                    previous.deleteFiles();
+                }
+                GenerationSession.pruneDirectories(originals, GenerationSession.KEEP_DIRECTORIES);
+            }, renderExecutor);
+        }
+        renderGeneration.incrementAndGet();
+        session = new GenerationSession(originals);
+        return session;
+    }
+
+    private void beginStoryboardRead() {
+        if (storyboardReaders++ == 0) {
+            storyboardControls.forEach(control -> control.setEnabled(false));
+        }
+    }
+
+    private void endStoryboardRead() {
+        if (--storyboardReaders == 0) {
+            storyboardControls.forEach(control -> control.setEnabled(true));
         }
     }
 
-    // Load image from URL asynchronously
-    private void loadImage(String imageUrl, int index) {
-        new SwingWorker<ImageIcon, Void>() {
+    private JFileChooser projectChooser() {
+        File directory = Paths.get(baseDataPath, "projects").toFile();
+        directory.mkdirs();
+        JFileChooser chooser = new JFileChooser(directory);
+        chooser.setFileFilter(new FileNameExtensionFilter("Film Assistant projects", ProjectFile.EXTENSION));
+        return chooser;
+    }
+
+    // Saves the story and every scene: originals as generated, plus the thumbnails and
+    // full-size images for the selected filter, prepared in parallel on the render pool.
+    private void saveProject() {
+        if (cancelButton.isEnabled()) {
+            JOptionPane.showMessageDialog(frame, "Wait for the story to finish, or cancel it, before saving.",
+                    "Film Assistant", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        List<SceneStore.Scene> scenes = sceneStore.scenes();
+        if (scenes.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "There is no storyboard to save yet.",
+                    "Film Assistant", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        JFileChooser chooser = projectChooser();
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path chosen = chooser.getSelectedFile().toPath();
+        Path file = chosen.getFileName().toString().endsWith("." + ProjectFile.EXTENSION)
+                ? chosen : chosen.resolveSibling(chosen.getFileName() + "." + ProjectFile.EXTENSION);
+        GenerationSession saving = session;
+        String filter = currentFilter;
+        String topic = storyTopic;
+        String creativity = storyCreativity;
+        String rewrittenTopic = modifiedTopic;
+        String story = storyText;
+
+        beginStoryboardRead();
+        new SwingWorker<ProjectFile, Void>() {
+            @Override
+            protected ProjectFile doInBackground() throws Exception {
+                long start = System.nanoTime();
+                List<CompletableFuture<ProjectFile.SceneDraft>> drafts = new ArrayList<>();
+                for (SceneStore.Scene scene : scenes) {
+                    drafts.add(CompletableFuture.supplyAsync(() -> draftScene(scene, filter), renderExecutor));
+                }
+                List<ProjectFile.SceneDraft> ready = new ArrayList<>();
+                for (CompletableFuture<ProjectFile.SceneDraft> draft : drafts) {
+                    try {
+                        ready.add(draft.get());
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof UncheckedIOException
+                                ? ((UncheckedIOException) e.getCause()).getCause() : e;
+                    }
+                }
+                ProjectFile saved = ProjectFile.save(file, topic, creativity, rewrittenTopic, story, filter, ready);
+                System.out.printf("Saved %d scenes to %s in %.1f ms%n", ready.size(), file, (System.nanoTime() - start) / 1e6);
+                return saved;
+            }
+
             @Override
-            protected ImageIcon doInBackground() throws Exception {
+            protected void done() {
+                endStoryboardRead();
                 try {
-                    @SuppressWarnings("deprecation")
-                    URL url = new URL(imageUrl);
-
-                    String originalImagePath = baseDataPath + "original/image" + index + ".jpeg";
-                    String editedImagePath = baseDataPath + "edited/image" + index + ".jpeg";
-
-                    // Save to disk
-                    writeImageToDisk(imageUrl, originalImagePath);
-
-                    if (filterType.getSelectedItem().equals("Grayscale")) {
-                        makeImageGrayscale(originalImagePath, editedImagePath);
-                        System.out.println("Grayscale image saved successfully.");
-                    } else if (filterType.getSelectedItem().equals("Sepia")) {
-                        // Create a new matrix to store the sepia image
-                        Mat sepiaImage = new Mat();
-                        // Save the sepia image
-                        String outputPath = "output/sepia_image.jpg";
-                        Imgcodecs.imwrite(outputPath, sepiaImage);
-                        System.out.println("Sepia image saved successfully.");
+                    ProjectFile saved = get();
+                    saving.markSaved();
+                    if (session != saving) {
+                        return; // a new story or project replaced these scenes meanwhile
                     }
+                    // Read from the saved file from now on; the session's files can go.
+                    project = saved;
+                    saved.scenes().forEach(sceneStore::put);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace();
+                    JOptionPane.showMessageDialog(frame, "Saving failed: " + ex.getCause().getMessage(),
+                            "Film Assistant", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
 
-                    File displayImageFile = new File(filterType.getSelectedItem() != "None" ? editedImagePath : originalImagePath);
-                    BufferedImage originalImage = ImageIO.read(displayImageFile);
-
-                    // Specify the desired image size
-                    int desiredWidth = 600; // Adjust width as needed
-                    // int desiredHeight = (int) (originalImage.getHeight() * (desiredWidth / (double) originalImage.getWidth())); // Maintain aspect ratio
-                    int desiredHeight = 600; // Adjust height as needed
+    // Writes the storyboard with the selected filter as an animatic video or a contact
+    // sheet; scenes are composed in parallel on the render pool while the file is written.
+    private void exportStoryboard(boolean animatic) {
+        if (cancelButton.isEnabled()) {
+            JOptionPane.showMessageDialog(frame, "Wait for the story to finish, or cancel it, before exporting.",
+                    "Film Assistant", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        List<StoryboardExporter.Scene> scenes = new ArrayList<>();
+        for (SceneStore.Scene scene : sceneStore.scenes()) {
+            scenes.add(new StoryboardExporter.Scene(scene.index, scene.description));
+        }
+        if (scenes.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "There is no storyboard to export yet.",
+                    "Film Assistant", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        File directory = Paths.get(baseDataPath, "exports").toFile();
+        directory.mkdirs();
+        JFileChooser chooser = new JFileChooser(directory);
+        chooser.setFileFilter(animatic
+                ? new FileNameExtensionFilter("Animatic (Motion JPEG AVI)", StoryboardExporter.ANIMATIC_EXTENSION)
+                : new FileNameExtensionFilter("Contact sheet (PNG or JPEG)", "png", "jpg", "jpeg"));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path file = chooser.getSelectedFile().toPath();
+        String filter = currentFilter;
+        String title = modifiedTopic.isEmpty() ? storyTopic : modifiedTopic;
+        StoryboardExporter.ImageSource images = index -> filteredImage(index, filter);
 
-                    // Create a new image of desired size
-                    BufferedImage resizedImage = new BufferedImage(desiredWidth, desiredHeight, BufferedImage.TYPE_INT_ARGB);
-                    Graphics2D g2 = resizedImage.createGraphics();
+        beginStoryboardRead();
+        new SwingWorker<Path, Void>() {
+            @Override
+            protected Path doInBackground() throws Exception {
+                return animatic
+                        ? StoryboardExporter.exportAnimatic(scenes, images, file,
+                                StoryboardExporter.AnimaticSettings.configured(), renderExecutor)
+                        : StoryboardExporter.exportContactSheet(scenes, title, images, file, renderExecutor);
+            }
 
-                    // Apply quality rendering hints
-                    g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                    g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-                    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            @Override
+            protected void done() {
+                endStoryboardRead();
+                try {
+                    Path written = get();
+                    JOptionPane.showMessageDialog(frame, "Exported to " + written,
+                            "Film Assistant", JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace();
+                    JOptionPane.showMessageDialog(frame, "Export failed: " + ex.getCause().getMessage(),
+                            "Film Assistant", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
 
-                    // Draw the resized image
-                    g2.drawImage(originalImage, 0, 0, desiredWidth, desiredHeight, null);
-                    g2.dispose();
+    private ProjectFile.SceneDraft draftScene(SceneStore.Scene scene, String filter) {
+        try {
+            BufferedImage thumbnail = thumbnail(scene.index, filter, SceneGallery.THUMB_WIDTH, SceneGallery.THUMB_HEIGHT);
+            FilterChain chain = FilterChain.forName(filter);
+            byte[] filteredPng = null;
+            if (!chain.isIdentity()) {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                ImageIO.write(chain.apply(sceneStore.original(scene.index)), "png", encoded);
+                filteredPng = encoded.toByteArray();
+            }
+            return new ProjectFile.SceneDraft(scene, thumbnail, filteredPng);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-                    return new ImageIcon(resizedImage);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
+    // Replaces the current storyboard with a saved one. Only the project's index,
+    // metadata and thumbnails are read here; full-size images wait until a scene is shown.
+    private void openProject() {
+        JFileChooser chooser = projectChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path file = chooser.getSelectedFile().toPath();
+        long start = System.nanoTime();
+        new SwingWorker<ProjectFile, Void>() {
+            @Override
+            protected ProjectFile doInBackground() throws Exception {
+                return ProjectFile.open(file);
             }
 
             @Override
             protected void done() {
+                ProjectFile opened;
                 try {
-                    ImageIcon imageIcon = get();
-                    if (imageIcon != null) {
-                        imageLabel.setIcon(imageIcon);
-                        frame.pack();
-                    } else {
-                        System.out.println("Failed to load image from URL: " + imageUrl);
-                    }
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
+                    opened = get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(frame, "Could not open " + file + ": " + ex.getCause().getMessage(),
+                            "Film Assistant", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                startSession();
+                clearStoryboard();
+                cancelButton.setEnabled(false);
+                filterType.setSelectedItem(opened.filter);
+                currentFilter = opened.filter;
+                project = opened;
+                storyTopic = opened.topic;
+                storyCreativity = opened.creativity;
+                modifiedTopic = opened.modifiedTopic;
+                storyText = opened.story;
+                inputField.setText(opened.topic);
+                creativityLevel.setSelectedItem(opened.creativity);
+                storyArea.setText("Topic: " + opened.modifiedTopic + "\n\n" + opened.story);
+                for (SceneStore.Scene scene : opened.scenes()) {
+                    sceneStore.put(scene);
+                    sceneGallery.addScene(scene.index, scene.description);
                 }
+                System.out.printf("Opened %s: %d scenes in %.1f ms%n", file, opened.scenes().size(),
+                        (System.nanoTime() - start) / 1e6);
             }
         }.execute();
     }
 
+    // Show a scene in the large preview; called when a gallery tile is selected.
+    private void showScene(int index) {
+        displayedScene = index;
+        SceneStore.Scene scene = sceneStore.scene(index);
+        imageCaption.setText(scene == null ? "" : scene.description);
+        Dimension view = viewSize();
+        SceneIconCache.SceneIcon icon = sceneIcons.get(SceneIconCache.key(index, view.width, view.height, viewScale()));
+        if (icon != null) {
+            sceneIcons.show(icon);
+        } else {
+            loadImage(index);
+        }
+    }
 
-    // Creativity step: Modify the topic based on creativity level
-    private static String modifyTopicAccordingToCreativity(String topic, String creativityLevel) throws JSONException {
-        String API_KEY = "";
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/chat/completions"))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + API_KEY)
-                .method("POST", HttpRequest.BodyPublishers.ofString("{\n" +
-                        "    \"model\": \"gpt-3.5-turbo\",\n" +
-                        "    \"messages\": [\n" +
-                        "      {\n" +
-                        "        \"role\": \"system\",\n" +
-                        "        \"content\": \"I will give a topic of a story and ask you to rewrite the topic according to the creativity level. Keep the essence of the story same or different according to the creativity level. For low level, do not make much changes. For high level, you must think outside the box. Do not write the story, just give me the updated topic according to the creativity level.\"\n"
-                        +
-                        "      },\n" +
-                        "      {\n" +
-                        "        \"role\": \"user\",\n" +
-                        "        \"content\": \"Topic: " + topic + ", Creativity Level: " + creativityLevel + "\"\n"
-                        +
-                        "      }\n" +
-                        "    ]\n" +
-                        "}"))
-                .build();
-
-        HttpResponse<String> response = null;
-        try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-            return extractStoryContent(response.body());
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            return null; // Consider handling the error more gracefully
+    // Filter and scale a scene for the large preview off the EDT.
+    private void loadImage(int index) {
+        renderScene(index, currentFilter, renderGeneration.get(), false);
+    }
+
+    // Re-render the current story from the stored originals after a filter change: the
+    // previewed scene and every visible thumbnail, in parallel. Nothing is regenerated
+    // or downloaded.
+    private void refilterScenes() {
+        currentFilter = (String) filterType.getSelectedItem();
+        int generation = renderGeneration.incrementAndGet();
+        sceneIcons.clear();
+        if (displayedScene >= 0) {
+            renderScene(displayedScene, currentFilter, generation, true);
         }
+        sceneGallery.invalidateThumbnails();
     }
 
-    // Step 1: Generate Story based on user prompt.
-    private static String generateStoryOnTopic(String topic) throws JSONException {
-        String API_KEY = "";
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/chat/completions"))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + API_KEY)
-                .method("POST", HttpRequest.BodyPublishers.ofString("{\n" +
-                        "                \"model\": \"gpt-3.5-turbo\",\n" +
-                        "                \"messages\": [\n" +
-                        "                        {\n" +
-                        "                                \"role\": \"system\",\n" +
-                        "                                \"content\": \"You an expert story write who will generate a short story on topic\"\n"
-                        +
-                        "                        },\n" +
-                        "                        {\n" +
-                        "                                \"role\": \"user\",\n" +
-                        "                                \"content\": \"Topic: " + topic + "\"\n"
-                        +
-                        "                        }\n" +
-                        "                ]\n" +
-                        "}"))
-                .build();
-
-        HttpResponse<String> response = null;
+    // Renders on the shared render pool and hands the icon back to the EDT. Until it is
+    // ready the scene's gallery thumbnail stands in, stretched to the view: at once if it
+    // is cached, otherwise made first on the same task (and cached for the gallery).
+    // Renders from an older generation (the filter changed or a new story started
+    // meanwhile) are skipped if they have not started, and their results dropped if they have.
+    private void renderScene(int index, String filter, int generation, boolean logTiming) {
+        long start = System.nanoTime();
+        Dimension view = viewSize();
+        double scale = viewScale();
+        String key = SceneIconCache.key(index, view.width, view.height, scale);
+        BufferedImage cachedThumbnail = thumbnailScaler.cached(index + ":" + filter,
+                SceneGallery.THUMB_WIDTH, SceneGallery.THUMB_HEIGHT);
+        if (index == displayedScene && !showsFullRender(index)) {
+            sceneIcons.show(cachedThumbnail == null ? null : previewIcon(index, cachedThumbnail, view));
+        }
+        CompletableFuture.supplyAsync(() -> {
+                    if (generation != renderGeneration.get()) {
+                        return null;
+                    }
+                    if (cachedThumbnail == null) {
+                        BufferedImage thumbnail;
+                        try {
+                            thumbnail = thumbnail(index, filter, SceneGallery.THUMB_WIDTH, SceneGallery.THUMB_HEIGHT);
+                        } catch (Exception e) {
+                            thumbnail = null; // the full render below fails the same way and reports it
+                        }
+                        BufferedImage preview = thumbnail;
+                        SwingUtilities.invokeLater(() -> {
+                            if (preview != null && generation == renderGeneration.get() && index == displayedScene
+                                    && !showsFullRender(index)) {
+                                sceneIcons.show(previewIcon(index, preview, view));
+                            }
+                        });
+                    }
+                    return renderForDisplay(index, filter, view, scale);
+                }, renderExecutor)
+                .whenComplete((icon, error) -> SwingUtilities.invokeLater(() -> {
+                    if (icon == null) {
+                        if (error != null && generation == renderGeneration.get()) {
+                            System.out.println("Failed to load image " + index + ": " + error.getMessage());
+                        }
+                        return;
+                    }
+                    if (generation != renderGeneration.get()) {
+                        if (icon.pooled) {
+                            displayBuffers.release(icon.image);
+                        }
+                        return;
+                    }
+                    sceneIcons.put(key, icon);
+                    if (index == displayedScene) {
+                        sceneIcons.show(icon);
+                    }
+                    if (logTiming) {
+                        System.out.printf("Re-rendered scene %d in %.1f ms%n", index, (System.nanoTime() - start) / 1e6);
+                    }
+                }));
+    }
+
+    // The large view's size in logical pixels, before it is laid out the size it asks for.
+    private Dimension viewSize() {
+        Insets insets = imageLabel.getInsets();
+        int width = imageLabel.getWidth() - insets.left - insets.right;
+        int height = imageLabel.getHeight() - insets.top - insets.bottom;
+        return width > 0 && height > 0 ? new Dimension(width, height) : imageLabel.getPreferredSize();
+    }
+
+    // Device pixels per logical pixel on the view's screen, e.g. 2 on a Retina display.
+    private double viewScale() {
+        GraphicsConfiguration configuration = imageLabel.getGraphicsConfiguration();
+        return configuration == null ? 1 : configuration.getDefaultTransform().getScaleX();
+    }
+
+    private boolean showsFullRender(int index) {
+        Icon shown = imageLabel.getIcon();
+        return shown instanceof SceneIconCache.SceneIcon && ((SceneIconCache.SceneIcon) shown).scene == index
+                && !((SceneIconCache.SceneIcon) shown).preview;
+    }
+
+    // A thumbnail stretched to what the full render will cover.
+    private static SceneIconCache.SceneIcon previewIcon(int index, BufferedImage thumbnail, Dimension view) {
+        double fit = Math.min(view.width / (double) thumbnail.getWidth(), view.height / (double) thumbnail.getHeight());
+        return new SceneIconCache.SceneIcon(index, thumbnail, Math.max(1, (int) Math.round(thumbnail.getWidth() * fit)),
+                Math.max(1, (int) Math.round(thumbnail.getHeight() * fit)), false, true);
+    }
+
+    private BufferedImage loadThumbnail(int index, int maxWidth, int maxHeight) throws Exception {
+        return thumbnail(index, currentFilter, maxWidth, maxHeight);
+    }
+
+    // Gallery thumbnails: scaled down first, then filtered, so the filter touches only
+    // thumbnail-sized pixels, unless the project holds one for this filter already.
+    // Cached per scene and filter.
+    private BufferedImage thumbnail(int index, String filter, int maxWidth, int maxHeight) throws Exception {
+        return thumbnailScaler.thumbnail(index + ":" + filter, maxWidth, maxHeight, () -> {
+            ProjectFile saved = project;
+            BufferedImage thumbnail = saved != null && filter.equals(saved.filter) ? saved.thumbnail(index) : null;
+            if (thumbnail != null && thumbnail.getWidth() <= maxWidth && thumbnail.getHeight() <= maxHeight) {
+                return thumbnail;
+            }
+            return FilterChain.forName(filter).apply(ThumbnailScaler.scaleToFit(sceneStore.original(index), maxWidth, maxHeight));
+        });
+    }
+
+    // The scene at full size with the filter applied: the project's filtered copy if it
+    // has one for this filter, otherwise filtered in memory from the decoded original.
+    // Nothing goes to disk.
+    private BufferedImage filteredImage(int index, String filter) throws IOException {
+        ProjectFile saved = project;
+        BufferedImage image = saved != null && filter.equals(saved.filter) ? saved.filtered(index) : null;
+        return image != null ? image : FilterChain.forName(filter).apply(sceneStore.original(index));
+    }
+
+    // Fits the scene into the view keeping its aspect ratio, with scale device pixels per
+    // logical pixel, drawn into a pooled buffer by the area-averaging scaler.
+    private SceneIconCache.SceneIcon renderForDisplay(int index, String filter, Dimension view, double scale) {
         try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-            return extractStoryContent(response.body());
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            return null; // Consider handling the error more gracefully
+            BufferedImage displayImage = filteredImage(index, filter);
+            Dimension size = ImageScaler.fit(displayImage.getWidth(), displayImage.getHeight(), view.width, view.height);
+            BufferedImage scaled = ImageScaler.scaleToFit(displayImage, (int) Math.round(size.width * scale),
+                    (int) Math.round(size.height * scale), displayBuffers);
+            return new SceneIconCache.SceneIcon(index, scaled, size.width, size.height, scaled != displayImage, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
 
-    private static String extractStoryContent(String jsonResponse) throws JSONException {
-        JSONObject jsonObj = new JSONObject(jsonResponse);
-        JSONArray choices = jsonObj.optJSONArray("choices");
-        if (choices == null || choices.length() == 0) {
-            throw new JSONException("No choices in response");
+    // The creativity rewrite and the story for one Generate. While RequestPlanner allows
+    // it they come from one structured call; otherwise, or when that call is rejected
+    // before it has shown anything, from the rewrite and then the story call. When
+    // streaming, rewritten-topic tokens go to onTopicDelta and story tokens to
+    // onStoryDelta as they arrive; the blocking calls do not use the listeners.
+    static RequestPlanner.TopicAndStory writeTopicAndStory(String topic, String creativityLevel, boolean stream,
+                                                           ChatStream.DeltaListener onTopicDelta,
+                                                           ChatStream.DeltaListener onStoryDelta,
+                                                           Consumer<Runnable> onCancel)
+            throws JSONException, IOException, InterruptedException {
+        if (RequestPlanner.structured()) {
+            RequestPlanner.StoryDecoder decoder = new RequestPlanner.StoryDecoder(onTopicDelta, onStoryDelta);
+            try (Metrics.Span span = Metrics.span(Metrics.Stage.REWRITE_STORY)) {
+                String key = topicAndStoryKey(topic, creativityLevel);
+                RequestPlanner.TopicAndStory written;
+                // Only a complete object is cached; a bad one would be replayed for the whole TTL.
+                if (stream) {
+                    cachedStream(key, topicAndStoryRequest(topic, creativityLevel, true), decoder, onCancel,
+                            content -> decoder.complete());
+                    written = decoder.finish(topic);
+                } else {
+                    written = RequestPlanner.decode(cachedChat(key, topicAndStoryRequest(topic, creativityLevel, false),
+                            RequestPlanner::isComplete), topic);
+                }
+                RequestPlanner.succeeded();
+                return span.succeeded(written);
+            } catch (IOException e) {
+                if (decoder.started() || !RequestPlanner.fallBack(e)) {
+                    throw e;
+                }
+            }
+        }
+        if (!stream) {
+            String modifiedTopic = modifyTopicAccordingToCreativity(topic, creativityLevel);
+            return new RequestPlanner.TopicAndStory(modifiedTopic, generateStoryOnTopic(modifiedTopic));
         }
-        JSONObject firstChoice = choices.getJSONObject(0);
-        return firstChoice.getJSONObject("message").getString("content");
+        String modifiedTopic = streamTopicAccordingToCreativity(topic, creativityLevel, onTopicDelta, onCancel);
+        return new RequestPlanner.TopicAndStory(modifiedTopic, streamStoryOnTopic(modifiedTopic, onStoryDelta, onCancel));
+    }
+
+    private static String topicAndStoryKey(String topic, String creativityLevel) {
+        return ResponseCache.key("chat", PROVIDER.chatModel(), TOPIC_AND_STORY_PROMPT,
+                "Topic: " + topic + ", Creativity Level: " + creativityLevel, sampling(creativityLevel));
     }
 
+    private static HttpRequest topicAndStoryRequest(String topic, String creativityLevel, boolean stream) {
+        return PROVIDER.chatRequest(chatBody(TOPIC_AND_STORY_PROMPT, "Topic: " + topic + ", Creativity Level: " + creativityLevel,
+                stream, RequestPlanner.Creativity.of(creativityLevel), true));
+    }
 
-    // Step 2: Generate Image Descriptions from the Story.
-    private static String[] generateImageDescriptionsFromStory(String story) throws JSONException {
-        String API_KEY = "";
+    private static String sampling(String creativityLevel) {
+        RequestPlanner.Creativity level = RequestPlanner.Creativity.of(creativityLevel);
+        return level == null ? "" : level.sampling();
+    }
 
-        String normalizedStory = story.replace("\n", " ");
-        System.out.println("Normalized Story: " + normalizedStory);
-
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/chat/completions"))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + API_KEY)
-                .method("POST", HttpRequest.BodyPublishers.ofString("{\n" +
-                        "                \"model\": \"gpt-3.5-turbo\",\n" +
-                        "                \"messages\": [\n" +
-                        "                        {\n" +
-                        "                                \"role\": \"system\",\n" +
-                        "                                \"content\": \"I will give you a story on a topic and you will give me image descriptions, maximum 5, of the scene. Give output in JSON format of a list of strings, use JSON mode, don't use markdown\"\n"
-                        +
-                        "                        },\n" +
-                        "                        {\n" +
-                        "                                \"role\": \"user\",\n" +
-                        "                                \"content\": \"Story: " + normalizedStory + "\"\n"
-                        +
-                        "                        }\n" +
-                        "                ]\n" +
-                        "}"))
-                .build();
-
-        HttpResponse<String> response = null;
-        try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-            String responseBody = response.body();
-            System.out.println(responseBody);
-            return extractImageDescriptions(responseBody);
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
-            return null; // Consider handling the error more gracefully
+    // Creativity step: Modify the topic based on creativity level
+    static String modifyTopicAccordingToCreativity(String topic, String creativityLevel)
+            throws JSONException, IOException, InterruptedException {
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.REWRITE)) {
+            return span.succeeded(cachedChat(creativityKey(topic, creativityLevel), creativityRequest(topic, creativityLevel, false)));
         }
     }
 
-    private static String[] extractImageDescriptions(String jsonResponse) throws JSONException {
-        System.out.println("Input: " + jsonResponse);
+    // Streaming variant of the creativity step: each token is passed to onDelta as it arrives.
+    static String streamTopicAccordingToCreativity(String topic, String creativityLevel, ChatStream.DeltaListener onDelta,
+                                                   Consumer<Runnable> onCancel)
+            throws IOException, InterruptedException {
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.REWRITE)) {
+            return span.succeeded(cachedStream(creativityKey(topic, creativityLevel), creativityRequest(topic, creativityLevel, true),
+                    onDelta, onCancel));
+        }
+    }
 
-        JSONObject jsonObj = new JSONObject(jsonResponse);
-        String content = jsonObj.getJSONArray("choices")
-                .getJSONObject(0)
-                .getJSONObject("message")
-                .getString("content");
+    private static String creativityKey(String topic, String creativityLevel) {
+        return ResponseCache.key("chat", PROVIDER.chatModel(), CREATIVITY_PROMPT, "Topic: " + topic + ", Creativity Level: " + creativityLevel,
+                sampling(creativityLevel));
+    }
 
-        // Content is JSON array of strings, so let's parse and split it.
-        content = content.replace("```json\n", "");
-        content = content.replace("\n```", "");
+    private static HttpRequest creativityRequest(String topic, String creativityLevel, boolean stream) {
+        return PROVIDER.chatRequest(chatBody(CREATIVITY_PROMPT,
+                "Topic: " + topic + ", Creativity Level: " + creativityLevel, stream,
+                RequestPlanner.Creativity.of(creativityLevel), false));
+    }
 
-        JSONArray contentArr = new JSONArray(content);
-        String[] descriptions = new String[contentArr.length()];
-        for (int i = 0; i < contentArr.length(); i++) {
-            descriptions[i] = contentArr.getString(i);
+    // Step 1: Generate Story based on user prompt.
+    static String generateStoryOnTopic(String topic) throws JSONException, IOException, InterruptedException {
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.STORY)) {
+            return span.succeeded(cachedChat(storyKey(topic), storyRequest(topic, false)));
         }
-        return descriptions;
     }
 
-    // Step 3: Generate Image from the Image Description.
-    // Input: Image Description
-    // Output: URL at which Dalle3 generates the image.
-    private static String generateImageFromImageDescription(String imageDescription) throws JSONException {
-        String API_KEY = "";
+    // Streaming variant of step 1: each token is passed to onDelta as it arrives.
+    static String streamStoryOnTopic(String topic, ChatStream.DeltaListener onDelta, Consumer<Runnable> onCancel)
+            throws IOException, InterruptedException {
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.STORY)) {
+            return span.succeeded(cachedStream(storyKey(topic), storyRequest(topic, true), onDelta, onCancel));
+        }
+    }
 
-        String body = "{\"model\": \"dall-e-3\", \"prompt\":\"" + imageDescription + "\",\"size\":\"1024x1024\"}";
+    private static String storyKey(String topic) {
+        return ResponseCache.key("chat", PROVIDER.chatModel(), STORY_PROMPT, "Topic: " + topic);
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.openai.com/v1/images/generations"))
-                .header("Content-Type", "application/json")
-                .header("Authorization", "Bearer " + API_KEY)
-                .method("POST", HttpRequest.BodyPublishers.ofString(body))
-                .build();
+    private static String cachedChat(String key, HttpRequest request)
+            throws JSONException, IOException, InterruptedException {
+        return cachedChat(key, request, content -> true);
+    }
 
-        HttpResponse<String> response = null;
+    // Returns the message content of a chat completion, calling the API only on a cache
+    // miss. A fresh answer is stored only if cacheable accepts it.
+    private static String cachedChat(String key, HttpRequest request, Predicate<String> cacheable)
+            throws JSONException, IOException, InterruptedException {
         try {
-            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
-            String responseBody = response.body();
-            System.out.println(responseBody);
+            return ResponseCache.shared().computeString(key, () -> extractStoryContent(
+                    RequestScheduler.shared().call(RequestScheduler.Endpoint.CHAT, key, request)), cacheable);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
 
-            return extractImageURL(responseBody);
-        } catch (IOException |
-                 InterruptedException e) {
-            e.printStackTrace();
-            return null; // Consider handling the error more gracefully
+    private static String cachedStream(String key, HttpRequest request, ChatStream.DeltaListener onDelta,
+                                       Consumer<Runnable> onCancel)
+            throws IOException, InterruptedException {
+        return cachedStream(key, request, onDelta, onCancel, content -> true);
+    }
+
+    // A cached answer is replayed to onDelta in one piece; a fresh stream is stored once
+    // complete and only if cacheable accepts it, so a cancelled one is never stored.
+    private static String cachedStream(String key, HttpRequest request, ChatStream.DeltaListener onDelta,
+                                       Consumer<Runnable> onCancel, Predicate<String> cacheable)
+            throws IOException, InterruptedException {
+        String cached = ResponseCache.shared().getString(key);
+        if (cached != null) {
+            onDelta.onDelta(cached);
+            return cached;
         }
+        String content = ChatStream.stream(request, onDelta, onCancel);
+        if (cacheable.test(content)) {
+            ResponseCache.shared().putString(key, content);
+        }
+        return content;
     }
 
-    private static String extractImageURL(String jsonResponse) throws JSONException {
-        JSONObject jsonObj = new JSONObject(jsonResponse);
-        String content = jsonObj.getJSONArray("data")
-                .getJSONObject(0)
-                .getString("url");
+    private static HttpRequest storyRequest(String topic, boolean stream) {
+        return PROVIDER.chatRequest(chatBody(STORY_PROMPT, "Topic: " + topic, stream));
+    }
+
+    private static String chatBody(String systemPrompt, String userMessage, boolean stream) {
+        return chatBody(systemPrompt, userMessage, stream, null, false);
+    }
+
+    // Request body for a chat completion with one system and one user message. Every
+    // string is escaped, so quotes, backslashes and newlines in a topic or story are safe.
+    // A creativity level sets temperature and top_p; jsonObject turns on JSON mode.
+    private static String chatBody(String systemPrompt, String userMessage, boolean stream,
+                                   RequestPlanner.Creativity sampling, boolean jsonObject) {
+        JsonWriter json = new JsonWriter(systemPrompt.length() + userMessage.length() * 9 / 8 + 256);
+        json.beginObject().name("model").value(PROVIDER.chatModel());
+        if (stream) {
+            json.name("stream").value(true);
+        }
+        if (sampling != null) {
+            json.name("temperature").value(sampling.temperature).name("top_p").value(sampling.topP);
+        }
+        if (jsonObject) {
+            json.name("response_format").beginObject().name("type").value("json_object").endObject();
+        }
+        json.name("messages").beginArray()
+                .beginObject().name("role").value("system").name("content").value(systemPrompt).endObject()
+                .beginObject().name("role").value("user").name("content").value(userMessage).endObject()
+                .endArray();
+        return json.endObject().toString();
+    }
+
+    // Pulls out choices[0].message.content without building the whole response tree.
+    private static String extractStoryContent(String jsonResponse) throws JSONException {
+        String content = JsonReader.findString(jsonResponse, "choices", 0, "message", "content");
+        if (content == null) {
+            throw new JSONException("No choices in response");
+        }
         return content;
     }
 
-    private static void makeImageGrayscale(String srcPath, String dstPath) {
-        // Load the OpenCV library
-        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 
-        // Read the input image
-        Mat image = Imgcodecs.imread(srcPath);
+    // Step 2: Generate Image Descriptions from the Story.
+    private static String[] generateImageDescriptionsFromStory(String story)
+            throws JSONException, IOException, InterruptedException {
+        return generateImageDescriptionsFromStory(story, StoryPipeline.MAX_SCENES);
+    }
 
-        // Check if the image is loaded successfully
-        if (image.empty()) {
-            System.out.println("Failed to load the image.");
-            return;
+    static String[] generateImageDescriptionsFromStory(String story, int maxDescriptions)
+            throws JSONException, IOException, InterruptedException {
+        String normalizedStory = story.replace("\n", " ");
+        if (VERBOSE) {
+            System.out.println("Normalized Story: " + normalizedStory);
+        }
+
+        boolean structured = RequestPlanner.structured();
+        try {
+            return imageDescriptions(normalizedStory, maxDescriptions, structured);
+        } catch (RequestScheduler.ApiException e) {
+            if (!structured || !RequestPlanner.fallBack(e)) {
+                throw e;
+            }
+            return imageDescriptions(normalizedStory, maxDescriptions, false);
+        }
+    }
+
+    private static String[] imageDescriptions(String normalizedStory, int maxDescriptions, boolean structured)
+            throws JSONException, IOException, InterruptedException {
+        String prompt = scenesPrompt(maxDescriptions, structured);
+        HttpRequest request = PROVIDER.chatRequest(chatBody(prompt, "Story: " + normalizedStory, false, null, structured));
+
+        String key = ResponseCache.key("chat", PROVIDER.chatModel(), prompt, "Story: " + normalizedStory);
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.SCENES)) {
+            String[] descriptions = extractImageDescriptions(cachedChat(key, request));
+            if (structured) {
+                RequestPlanner.succeeded();
+            }
+            return span.succeeded(descriptions);
+        }
+    }
+
+    // JSON mode only returns objects, so a structured request asks for the list as a member of one.
+    private static String scenesPrompt(int maxDescriptions, boolean structured) {
+        String intro = "I will give you a story on a topic and you will give me image descriptions, maximum " + maxDescriptions
+                + ", of the scene. ";
+        return structured ? intro + "Give output as a JSON object with one member, \"scenes\", a list of strings"
+                : intro + "Give output in JSON format of a list of strings, use JSON mode, don't use markdown";
+    }
+
+    // Input is the message content of the scenes completion: a JSON array of strings,
+    // possibly wrapped in a markdown code fence despite the prompt, or an object with
+    // that array as its "scenes" member.
+    private static String[] extractImageDescriptions(String content) throws JSONException {
+        if (VERBOSE) {
+            System.out.println("Input: " + content);
         }
 
-        // Create a new matrix to store the grayscale image
-        Mat grayImage = new Mat();
+        JsonReader reader = new JsonReader(stripCodeFence(content));
+        if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (true) {
+                if (!reader.hasNext()) {
+                    throw new JSONException("No scenes in response");
+                }
+                if (reader.nextNameIs("scenes")) {
+                    break;
+                }
+                reader.skipValue();
+            }
+        }
+        reader.beginArray();
+        List<String> descriptions = new ArrayList<>();
+        while (reader.hasNext()) {
+            descriptions.add(reader.nextString());
+        }
+        reader.endArray();
+        return descriptions.toArray(new String[0]);
+    }
+
+    // "```json\n[...]\n```" -> "[...]"; anything without a leading fence is returned trimmed.
+    private static String stripCodeFence(String content) {
+        String trimmed = content.trim();
+        if (!trimmed.startsWith("```")) {
+            return trimmed;
+        }
+        int bodyStart = trimmed.indexOf('\n');
+        int bodyEnd = trimmed.lastIndexOf("```");
+        if (bodyStart < 0 || bodyEnd <= bodyStart) {
+            return trimmed;
+        }
+        return trimmed.substring(bodyStart + 1, bodyEnd).trim();
+    }
+
+    // Step 3: Generate Image from the Image Description.
+    // Input: Image Description
+    // Output: URL at which Dalle3 generates the image.
+    private static String generateImageFromImageDescription(String imageDescription)
+            throws JSONException, IOException, InterruptedException {
+        String body = new JsonWriter(imageDescription.length() + 96).beginObject()
+                .name("model").value(PROVIDER.imageModel())
+                .name("prompt").value(imageDescription)
+                .name("size").value(PROVIDER.imageSize())
+                .endObject().toString();
+
+        HttpRequest request = PROVIDER.imageRequest(body);
+
+        try (Metrics.Span span = Metrics.span(Metrics.Stage.IMAGE)) {
+            String responseBody = RequestScheduler.shared().call(RequestScheduler.Endpoint.IMAGES,
+                    imageKey(imageDescription), request);
+            if (VERBOSE) {
+                System.out.println(responseBody);
+            }
+            return span.succeeded(extractImageURL(responseBody));
+        }
+    }
 
-        // Convert the image to grayscale
-        Imgproc.cvtColor(image, grayImage, Imgproc.COLOR_BGR2GRAY);
+    private static String imageKey(String imageDescription) {
+        return ResponseCache.key("image", PROVIDER.imageModel(), PROVIDER.imageSize(), imageDescription);
+    }
 
-        // Save the grayscale image
-        Imgcodecs.imwrite(dstPath, grayImage);
+    // Step 3 plus download: the image is streamed to data/original/.staging/ and decoded
+    // once, in memory, for display and filtering. It is moved into the session's directory
+    // only if the session is still active by then.
+    private ImageStage.SceneImage generateSceneImage(GenerationSession session, int index, String imageDescription)
+            throws Exception {
+        session.ensureActive();
+        Path staged = Paths.get(baseDataPath, "original", GenerationSession.STAGING, session.id + "-image" + index + ".png");
+        Path imageFile = session.directory.resolve("image" + index + ".png");
+        try {
+            fetchSceneImage(imageDescription, staged);
+            BufferedImage image = ImageIO.read(staged.toFile());
+            if (image == null) {
+                throw new IOException("Unsupported image format: " + staged);
+            }
+            session.commit(() -> {
+                Files.createDirectories(imageFile.getParent());
+                Files.move(staged, imageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            });
+            return new ImageStage.SceneImage(index, imageDescription, imageFile, image);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+    }
 
-        System.out.println("Grayscale image saved successfully.");
+    // Generates and downloads the image for a description into imageFile. A description
+    // that has been drawn before is served from the response cache, which keeps the image
+    // file because the returned URL expires.
+    static Path fetchSceneImage(String imageDescription, Path imageFile) throws Exception {
+        Files.createDirectories(imageFile.getParent());
+        String key = imageKey(imageDescription);
+        if (!ResponseCache.shared().getFile(key, imageFile)) {
+            ImageDownloader.download(generateImageFromImageDescription(imageDescription), imageFile);
+            ResponseCache.shared().putFile(key, imageFile);
+        }
+        return imageFile;
     }
 
+    // Pulls out data[0].url without building the whole response tree.
+    private static String extractImageURL(String jsonResponse) throws JSONException {
+        String url = JsonReader.findString(jsonResponse, "data", 0, "url");
+        if (url == null) {
+            throw new JSONException("No image URL in response");
+        }
+        return url;
+    }
 
     public static void main(String[] args) throws JSONException {
         // Schedule a job for the event dispatch thread
         SwingUtilities.invokeLater(Main::new); // Create and show the GUI
 
+        // Load OpenCV, connect to the API and load the codecs behind the window, while
+        // the user types, instead of on the first click
+        CompletableFuture<Void> prewarm = Startup.prewarm(PROVIDER);
+        MetricsEndpoint.startIfConfigured();
+        // Training run for a class-data-sharing archive (see appcds.sh): exit once the
+        // window is up and everything is warm.
+        if (Boolean.getBoolean("filmassistant.startup.exitWhenWarm")) {
+            prewarm.thenRun(() -> SwingUtilities.invokeLater(() -> System.exit(0)));
+        }
+
 
         // String topic = "A story about a girl walking down the street";
 
@@ -0,0 +1,268 @@
+package ac.kent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+// Process-wide instrumentation for the generation pipeline: a latency histogram and a
+// failure count per stage, token, download and queue counters, and the cache and
+// request-scheduler counters those classes already keep. Recording is a few LongAdder
+// increments, and the JFR events cost nothing unless a recording is running. Read it
+// with prometheus() (served by MetricsEndpoint) or with JFR: ac.kent.Stage per stage
+// run, ac.kent.PipelineSnapshot once a second.
+final class Metrics {
+    enum Stage {
+        REWRITE("rewrite"),
+        STORY("story"),
+        // The rewrite and the story as one structured call (RequestPlanner).
+        REWRITE_STORY("rewrite+story"),
+        SCENES("scenes"),
+        IMAGE("image"),
+        DOWNLOAD("download"),
+        FILTER("filter"),
+        SCALE("scale");
+
+        final String label;
+        final Histogram latency = new Histogram();
+        final LongAdder failures = new LongAdder();
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    // Times one run of a stage. Use with try-with-resources and mark success before the
+    // block ends; a span closed without it counts as a failure.
+    static final class Span implements AutoCloseable {
+        private final Stage stage;
+        private final long start = System.nanoTime();
+        private final StageEvent event = new StageEvent();
+        private boolean succeeded;
+
+        private Span(Stage stage) {
+            this.stage = stage;
+            event.begin();
+        }
+
+        <T> T succeeded(T result) {
+            succeeded = true;
+            return result;
+        }
+
+        void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            stage.latency.record(System.nanoTime() - start);
+            if (!succeeded) {
+                stage.failures.increment();
+            }
+            if (event.shouldCommit()) {
+                event.stage = stage.label;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    // Cumulative-bucket latency histogram with fixed bounds from 1ms to 100s.
+    static final class Histogram {
+        private static final double[] BOUNDS_SECONDS = {
+                0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100};
+        private static final long[] BOUNDS_NANOS = new long[BOUNDS_SECONDS.length];
+
+        static {
+            for (int i = 0; i < BOUNDS_SECONDS.length; i++) {
+                BOUNDS_NANOS[i] = (long) (BOUNDS_SECONDS[i] * 1e9);
+            }
+        }
+
+        // Per-bucket (not cumulative) counts; the last one is +Inf.
+        private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    @Name("ac.kent.Stage")
+    @Label("Pipeline Stage")
+    @Category("Film Assistant")
+    @Description("One run of a generation pipeline stage")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("ac.kent.PipelineSnapshot")
+    @Label("Pipeline Snapshot")
+    @Category("Film Assistant")
+    @Description("Pipeline counters, sampled periodically")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class SnapshotEvent extends Event {
+        @Label("Prompt Tokens")
+        long promptTokens;
+
+        @Label("Completion Tokens")
+        long completionTokens;
+
+        @Label("Bytes Downloaded")
+        long downloadBytes;
+
+        @Label("Cache Hits")
+        long cacheHits;
+
+        @Label("Cache Misses")
+        long cacheMisses;
+
+        @Label("Request Retries")
+        long retries;
+
+        @Label("Queued Items")
+        long queueDepth;
+    }
+
+    private static final LongAdder PROMPT_TOKENS = new LongAdder();
+    private static final LongAdder COMPLETION_TOKENS = new LongAdder();
+    private static final LongAdder DOWNLOAD_BYTES = new LongAdder();
+    // Items waiting in StagePipeline queues, by stage name, summed over live pipelines.
+    private static final Map<String, AtomicLong> QUEUE_DEPTH = new ConcurrentHashMap<>();
+
+    static {
+        FlightRecorder.addPeriodicEvent(SnapshotEvent.class, Metrics::emitSnapshot);
+    }
+
+    private Metrics() {
+    }
+
+    static Span span(Stage stage) {
+        return new Span(stage);
+    }
+
+    static void addTokens(long prompt, long completion) {
+        PROMPT_TOKENS.add(Math.max(0, prompt));
+        COMPLETION_TOKENS.add(Math.max(0, completion));
+    }
+
+    static void addDownloadBytes(long bytes) {
+        DOWNLOAD_BYTES.add(bytes);
+    }
+
+    static AtomicLong queueDepth(String stageName) {
+        return QUEUE_DEPTH.computeIfAbsent(stageName, name -> new AtomicLong());
+    }
+
+    private static void emitSnapshot() {
+        SnapshotEvent event = new SnapshotEvent();
+        event.promptTokens = PROMPT_TOKENS.sum();
+        event.completionTokens = COMPLETION_TOKENS.sum();
+        event.downloadBytes = DOWNLOAD_BYTES.sum();
+        event.cacheHits = ResponseCache.shared().memoryHits() + ResponseCache.shared().diskHits();
+        event.cacheMisses = ResponseCache.shared().misses();
+        event.retries = RequestScheduler.shared().stats().retries;
+        event.queueDepth = QUEUE_DEPTH.values().stream().mapToLong(AtomicLong::get).sum();
+        event.commit();
+    }
+
+    // Everything above in the Prometheus text exposition format, version 0.0.4.
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(8192);
+
+        header(out, "filmassistant_stage_duration_seconds", "Latency of each pipeline stage.", "histogram");
+        for (Stage stage : Stage.values()) {
+            String labels = "stage=\"" + stage.label + "\"";
+            long cumulative = 0;
+            for (int i = 0; i < stage.latency.buckets.length; i++) {
+                cumulative += stage.latency.buckets[i].sum();
+                String le = i < Histogram.BOUNDS_SECONDS.length ? Double.toString(Histogram.BOUNDS_SECONDS[i]) : "+Inf";
+                out.append("filmassistant_stage_duration_seconds_bucket{").append(labels)
+                        .append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sample(out, "filmassistant_stage_duration_seconds_sum", labels, stage.latency.sumNanos.sum() / 1e9);
+            sample(out, "filmassistant_stage_duration_seconds_count", labels, cumulative);
+        }
+
+        header(out, "filmassistant_stage_failures_total", "Stage runs that ended in an exception.", "counter");
+        for (Stage stage : Stage.values()) {
+            sample(out, "filmassistant_stage_failures_total", "stage=\"" + stage.label + "\"", stage.failures.sum());
+        }
+
+        header(out, "filmassistant_tokens_total", "Chat tokens used; streamed completions count one per delta.", "counter");
+        sample(out, "filmassistant_tokens_total", "type=\"prompt\"", PROMPT_TOKENS.sum());
+        sample(out, "filmassistant_tokens_total", "type=\"completion\"", COMPLETION_TOKENS.sum());
+
+        header(out, "filmassistant_download_bytes_total", "Image bytes downloaded.", "counter");
+        sample(out, "filmassistant_download_bytes_total", null, DOWNLOAD_BYTES.sum());
+
+        ResponseCache cache = ResponseCache.shared();
+        header(out, "filmassistant_cache_hits_total", "Response cache hits.", "counter");
+        sample(out, "filmassistant_cache_hits_total", "tier=\"memory\"", cache.memoryHits());
+        sample(out, "filmassistant_cache_hits_total", "tier=\"disk\"", cache.diskHits());
+        header(out, "filmassistant_cache_misses_total", "Response cache misses.", "counter");
+        sample(out, "filmassistant_cache_misses_total", null, cache.misses());
+
+        RequestScheduler.Stats requests = RequestScheduler.shared().stats();
+        header(out, "filmassistant_api_requests_total", "API requests sent, including retries.", "counter");
+        sample(out, "filmassistant_api_requests_total", null, requests.sent);
+        header(out, "filmassistant_api_retries_total", "API requests retried after 429, 5xx or I/O errors.", "counter");
+        sample(out, "filmassistant_api_retries_total", null, requests.retries);
+        header(out, "filmassistant_api_coalesced_total", "Calls answered by an identical request already in flight.", "counter");
+        sample(out, "filmassistant_api_coalesced_total", null, requests.coalesced);
+        header(out, "filmassistant_api_throttled_seconds_total", "Time spent waiting on rate limits.", "counter");
+        sample(out, "filmassistant_api_throttled_seconds_total", null, requests.throttledNanos / 1e9);
+
+        header(out, "filmassistant_queue_depth", "Items waiting in pipeline stage queues.", "gauge");
+        for (Map.Entry<String, AtomicLong> entry : QUEUE_DEPTH.entrySet()) {
+            sample(out, "filmassistant_queue_depth", "stage=\"" + entry.getKey() + "\"", entry.getValue().get());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,46 @@
+package ac.kent;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Serves Metrics.prometheus() at http://127.0.0.1:<port>/metrics for a Prometheus
+// scraper. Off unless filmassistant.metrics.port is set; it only listens on loopback.
+final class MetricsEndpoint {
+    private static HttpServer server;
+
+    private MetricsEndpoint() {
+    }
+
+    static synchronized void startIfConfigured() {
+        Integer port = Integer.getInteger("filmassistant.metrics.port");
+        if (port == null || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-endpoint");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.createContext("/metrics", exchange -> {
+                byte[] body = Metrics.prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics: http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not started on port " + port + ": " + e.getMessage());
+        }
+    }
+}
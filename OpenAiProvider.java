@@ -0,0 +1,93 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest;
+
+// OpenAI, or any server with the same API. configured() reads:
+//   filmassistant.provider      openai (default), or stub for a StubApiServer started in
+//                               this JVM, configured by its filmassistant.stub.* properties
+//   filmassistant.api.base      base URL, default https://api.openai.com/v1
+//   filmassistant.api.key       API key, default the OPENAI_API_KEY environment variable
+//   filmassistant.chat.model    default gpt-3.5-turbo
+//   filmassistant.image.model   default dall-e-3
+//   filmassistant.image.size    default 1024x1024
+final class OpenAiProvider implements GenerationProvider {
+    private final String baseUrl;
+    private final String apiKey;
+    private final String chatModel;
+    private final String imageModel;
+    private final String imageSize;
+
+    OpenAiProvider(String baseUrl, String apiKey, String chatModel, String imageModel, String imageSize) {
+        this.baseUrl = baseUrl;
+        this.apiKey = apiKey;
+        this.chatModel = chatModel;
+        this.imageModel = imageModel;
+        this.imageSize = imageSize;
+    }
+
+    static GenerationProvider configured() {
+        String chatModel = System.getProperty("filmassistant.chat.model", "gpt-3.5-turbo");
+        String imageModel = System.getProperty("filmassistant.image.model", "dall-e-3");
+        String imageSize = System.getProperty("filmassistant.image.size", "1024x1024");
+        String provider = System.getProperty("filmassistant.provider", "openai");
+        if (provider.equals("stub")) {
+            try {
+                // Serves on daemon threads for the life of the process.
+                StubApiServer stub = StubApiServer.configured();
+                System.out.println("Provider: stub API at " + stub.baseUrl());
+                return new OpenAiProvider(stub.baseUrl(), "stub", chatModel, imageModel, imageSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start the stub API server", e);
+            }
+        }
+        if (!provider.equals("openai")) {
+            throw new IllegalArgumentException("Unknown filmassistant.provider: " + provider);
+        }
+        String apiKey = System.getProperty("filmassistant.api.key", System.getenv().getOrDefault("OPENAI_API_KEY", ""));
+        return new OpenAiProvider(System.getProperty("filmassistant.api.base", "https://api.openai.com/v1"),
+                apiKey, chatModel, imageModel, imageSize);
+    }
+
+    @Override
+    public String chatModel() {
+        return chatModel;
+    }
+
+    @Override
+    public String imageModel() {
+        return imageModel;
+    }
+
+    @Override
+    public String imageSize() {
+        return imageSize;
+    }
+
+    @Override
+    public HttpRequest chatRequest(String body) {
+        return post("/chat/completions", body);
+    }
+
+    @Override
+    public HttpRequest imageRequest(String body) {
+        return post("/images/generations", body);
+    }
+
+    // Listing the models costs nothing and checks the key as well.
+    @Override
+    public HttpRequest warmUpRequest() {
+        return ApiClient.shared().newRequest(baseUrl + "/models")
+                .header("Authorization", "Bearer " + apiKey)
+                .GET()
+                .build();
+    }
+
+    private HttpRequest post(String path, String body) {
+        return ApiClient.shared().newRequest(baseUrl + path)
+                .header("Authorization", "Bearer " + apiKey)
+                .method("POST", HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+}
@@ -0,0 +1,122 @@
+package ac.kent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End-to-end load on the generation pipeline against the local StubApiServer. Each
+// simulated user streams the creativity rewrite and the story (one call or two, as
+// RequestPlanner decides), overlaps scene extraction and image downloads with the
+// stream through StoryPipeline as the GUI does, and starts its next topic as soon as
+// one finishes. Per concurrency level it reports throughput,
+// p50/p99 end-to-end latency, p50/p99 time to the first story token, and failures. The
+// response cache is bypassed and rate limits are off, so every pipeline makes every
+// request and the stub's latency, jitter and errors are all the pipeline sees.
+// Usage: java ac.kent.PipelineLoadBenchmark [pipelinesPerUser] [latencyMs] [jitterMs] [errorRate]
+public class PipelineLoadBenchmark {
+    private static final int[] USERS = {1, 4, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        int pipelinesPerUser = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int jitterMs = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        double errorRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.02;
+
+        try (StubApiServer stub = new StubApiServer(0, latencyMs, jitterMs, errorRate, 1, 42)) {
+            // All are read once when the classes using them are first loaded, which is below.
+            System.setProperty("filmassistant.api.base", stub.baseUrl());
+            System.setProperty("filmassistant.cache.bypass", "true");
+            System.setProperty("filmassistant.limits.chat.rpm", "0");
+            System.setProperty("filmassistant.limits.chat.tpm", "0");
+            System.setProperty("filmassistant.limits.images.rpm", "0");
+            // Retry injected failures at the stub's pace rather than the real API's.
+            System.setProperty("filmassistant.retry.baseDelayMs", String.valueOf(Math.max(10, latencyMs)));
+
+            Path output = Files.createTempDirectory("pipeline-load");
+            run(output, 1, 2); // warm up class loading, JIT and the connection pool
+
+            List<String> lines = new ArrayList<>();
+            for (int users : USERS) {
+                lines.add(run(output, users, Math.max(8, users * pipelinesPerUser)));
+            }
+            System.out.println();
+            System.out.printf(Locale.ROOT, "Stub: latency %dms + 0..%dms jitter, error rate %.0f%%%n",
+                    latencyMs, jitterMs, errorRate * 100);
+            lines.forEach(System.out::println);
+            System.out.println("Stub responses: " + stub.served() + ", injected failures: " + stub.failed());
+            System.out.println("Requests: " + RequestScheduler.shared().stats());
+            System.out.println("HTTP: " + ApiClient.shared().stats());
+        }
+    }
+
+    private static String run(Path output, int users, int pipelines) throws InterruptedException {
+        long[] latencies = new long[pipelines];
+        long[] firstTokens = new long[pipelines];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        long start = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            pool.execute(() -> {
+                int n;
+                while ((n = next.getAndIncrement()) < pipelines) {
+                    try {
+                        runPipeline(output, n, latencies, firstTokens);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        latencies[n] = -1;
+                        System.out.println("Pipeline " + n + " failed: " + e);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double minutes = (System.nanoTime() - start) / 60e9;
+
+        long[] ok = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        long[] first = Arrays.stream(firstTokens).filter(latency -> latency > 0).sorted().toArray();
+        return String.format(Locale.ROOT,
+                "users %2d: %3d pipelines, %6.1f/min, latency p50=%5dms p99=%5dms, first token p50=%4dms p99=%4dms, failed=%d",
+                users, pipelines, ok.length / minutes, percentile(ok, 0.50), percentile(ok, 0.99),
+                percentile(first, 0.50), percentile(first, 0.99), failed.get());
+    }
+
+    // Rewrite, story, scenes and images for one topic, timed from the first request.
+    private static void runPipeline(Path output, int n, long[] latencies, long[] firstTokens) throws Exception {
+        long start = System.nanoTime();
+        String topic = "A lighthouse keeper finds message number " + n + " at " + start;
+        StoryPipeline pipeline = new StoryPipeline(Main::generateImageDescriptionsFromStory,
+                (index, description) -> new ImageStage.SceneImage(index, description,
+                        Main.fetchSceneImage(description, output.resolve(n + "-image" + index + ".png")), null),
+                ImageStage.DEFAULT_CONCURRENCY, scene -> { });
+        try {
+            Main.writeTopicAndStory(topic, "Medium", true, delta -> { }, delta -> {
+                if (firstTokens[n] == 0) {
+                    firstTokens[n] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+                pipeline.append(delta);
+            }, hook -> { });
+            pipeline.finish();
+        } catch (Exception e) {
+            pipeline.cancel();
+            throw e;
+        }
+        latencies[n] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    // Nearest-rank percentile of sorted values.
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,367 @@
+package ac.kent;
+
+import org.json.JSONException;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A saved storyboard: topic, rewritten topic, story, the filter in use, and per scene its
+// description, original image, filtered image and gallery thumbnail, in one file:
+//
+//   header      64 bytes: magic, entry count, metadata offset and length, blobs offset
+//   index       32 bytes per entry: kind, scene, offset, length, width, height
+//   thumbnails  raw pixels, one 32-bit 0x00RRGGBB int each, one entry per scene
+//   metadata    UTF-8 JSON: topics, story, filter, scene descriptions
+//   blobs       original and filtered images as encoded PNG bytes
+//
+// open() maps everything before the blobs, so a gallery thumbnail is one bulk copy out of
+// the mapping into the image's pixel array, with no decoding. Full-size images are read from their
+// byte range only when a scene is shown. Numbers are big-endian.
+final class ProjectFile {
+    static final String EXTENSION = "faproj";
+
+    private static final long MAGIC = 0x4641_5052_4f4a_0001L; // "FAPROJ", format version 1
+    private static final int HEADER_BYTES = 64;
+    private static final int ENTRY_BYTES = 32;
+    private static final int THUMBNAIL = 1;
+    private static final int ORIGINAL = 2;
+    private static final int FILTERED = 3;
+
+    // What save() writes for one scene: its original as the scene store holds it, the
+    // thumbnail the gallery shows, and the filtered image as PNG (null for no filter).
+    static final class SceneDraft {
+        final SceneStore.Scene scene;
+        final BufferedImage thumbnail;
+        final byte[] filteredPng;
+
+        SceneDraft(SceneStore.Scene scene, BufferedImage thumbnail, byte[] filteredPng) {
+            this.scene = scene;
+            this.thumbnail = thumbnail;
+            this.filteredPng = filteredPng;
+        }
+    }
+
+    private static final class Entry {
+        final int kind;
+        final int scene;
+        final long offset;
+        final long length;
+        final int width;
+        final int height;
+
+        Entry(int kind, int scene, long offset, long length, int width, int height) {
+            this.kind = kind;
+            this.scene = scene;
+            this.offset = offset;
+            this.length = length;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    final Path file;
+    final String topic;
+    final String creativity;
+    final String modifiedTopic;
+    final String story;
+    final String filter;
+    private final List<SceneStore.Scene> scenes;
+    private final Map<Integer, Entry> thumbnails;
+    private final Map<Integer, Entry> filtered;
+    // Header through metadata; blobs are read through the file instead.
+    private final ByteBuffer head;
+
+    private ProjectFile(Path file, String topic, String creativity, String modifiedTopic, String story, String filter,
+                        List<SceneStore.Scene> scenes, Map<Integer, Entry> thumbnails, Map<Integer, Entry> filtered,
+                        ByteBuffer head) {
+        this.file = file;
+        this.topic = topic;
+        this.creativity = creativity;
+        this.modifiedTopic = modifiedTopic;
+        this.story = story;
+        this.filter = filter;
+        this.scenes = scenes;
+        this.thumbnails = thumbnails;
+        this.filtered = filtered;
+        this.head = head;
+    }
+
+    // Scenes in index order, with their originals pointing into this file.
+    List<SceneStore.Scene> scenes() {
+        return scenes;
+    }
+
+    // The saved thumbnail, which shows the scene with `filter` applied; null if there is none.
+    BufferedImage thumbnail(int sceneIndex) {
+        Entry entry = thumbnails.get(sceneIndex);
+        if (entry == null) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(entry.width, entry.height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        head.duplicate().position(Math.toIntExact(entry.offset)).asIntBuffer().get(pixels);
+        return image;
+    }
+
+    // The scene with `filter` applied at full size, decoded; null if it was saved unfiltered.
+    BufferedImage filtered(int sceneIndex) throws IOException {
+        Entry entry = filtered.get(sceneIndex);
+        if (entry == null) {
+            return null;
+        }
+        BufferedImage image;
+        try (InputStream in = new SceneStore.Scene(sceneIndex, null, file, entry.offset, entry.length).openImage()) {
+            image = ImageIO.read(in);
+        }
+        if (image == null) {
+            throw new IOException("Unsupported image format in " + file);
+        }
+        return image;
+    }
+
+    static ProjectFile open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException(file + " is not a Film Assistant project");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a Film Assistant project");
+            }
+            int entryCount = header.getInt();
+            int metadataLength = header.getInt();
+            long metadataOffset = header.getLong();
+            long blobsOffset = header.getLong();
+            long indexEnd = HEADER_BYTES + (long) ENTRY_BYTES * entryCount;
+            if (entryCount < 0 || metadataLength < 0 || metadataOffset < indexEnd || blobsOffset > channel.size()
+                    || blobsOffset > Integer.MAX_VALUE || metadataOffset > blobsOffset - metadataLength) {
+                throw new IOException(file + " is damaged");
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, blobsOffset);
+
+            List<Entry> entries = new ArrayList<>(entryCount);
+            ByteBuffer index = head.duplicate();
+            index.position(HEADER_BYTES);
+            for (int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(index.getInt(), index.getInt(), index.getLong(), index.getLong(),
+                        index.getInt(), index.getInt());
+                if (!fits(entry, indexEnd, metadataOffset, blobsOffset, channel.size())) {
+                    throw new IOException(file + " is damaged: entry " + i + " points outside its section");
+                }
+                entries.add(entry);
+            }
+            byte[] metadata = new byte[metadataLength];
+            head.duplicate().position(Math.toIntExact(metadataOffset)).get(metadata);
+            return read(file, new String(metadata, StandardCharsets.UTF_8), entries, head);
+        } catch (JSONException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(file + " is damaged: " + e.getMessage(), e);
+        }
+    }
+
+    // Whether entry lies inside the section for its kind: thumbnails between the index and
+    // the metadata, with exactly width x height pixels; images among the blobs. Thumbnails
+    // are copied straight out of the mapping and images read by range later, so anything
+    // else would only fail once the scene is drawn.
+    private static boolean fits(Entry entry, long indexEnd, long metadataOffset, long blobsOffset, long fileSize) {
+        if (entry.length < 0) {
+            return false;
+        }
+        if (entry.kind == THUMBNAIL) {
+            return entry.width > 0 && entry.height > 0 && entry.length == 4L * entry.width * entry.height
+                    && entry.offset >= indexEnd && entry.offset <= metadataOffset - entry.length;
+        }
+        if (entry.kind == ORIGINAL || entry.kind == FILTERED) {
+            return entry.offset >= blobsOffset && entry.offset <= fileSize - entry.length;
+        }
+        return true; // a kind from a later version, which read() skips
+    }
+
+    private static ProjectFile read(Path file, String metadata, List<Entry> entries, ByteBuffer head) {
+        String topic = "";
+        String creativity = "";
+        String modifiedTopic = "";
+        String story = "";
+        String filter = FilterChain.PRESETS[0];
+        Map<Integer, String> descriptions = new HashMap<>();
+        JsonReader json = new JsonReader(metadata);
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (name.equals("scenes")) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    int sceneIndex = -1;
+                    String description = "";
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String field = json.nextName();
+                        if (field.equals("index")) {
+                            sceneIndex = (int) json.nextLong();
+                        } else if (field.equals("description")) {
+                            description = json.nextString();
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    descriptions.put(sceneIndex, description);
+                }
+                json.endArray();
+            } else if (json.peek() != JsonReader.Token.STRING) {
+                json.skipValue();
+            } else if (name.equals("topic")) {
+                topic = json.nextString();
+            } else if (name.equals("creativity")) {
+                creativity = json.nextString();
+            } else if (name.equals("modifiedTopic")) {
+                modifiedTopic = json.nextString();
+            } else if (name.equals("story")) {
+                story = json.nextString();
+            } else if (name.equals("filter")) {
+                filter = json.nextString();
+            } else {
+                json.skipValue();
+            }
+        }
+
+        List<SceneStore.Scene> scenes = new ArrayList<>();
+        Map<Integer, Entry> thumbnails = new HashMap<>();
+        Map<Integer, Entry> filtered = new HashMap<>();
+        for (Entry entry : entries) {
+            if (entry.kind == ORIGINAL) {
+                scenes.add(new SceneStore.Scene(entry.scene, descriptions.getOrDefault(entry.scene, ""), file,
+                        entry.offset, entry.length));
+            } else if (entry.kind == THUMBNAIL) {
+                thumbnails.put(entry.scene, entry);
+            } else if (entry.kind == FILTERED) {
+                filtered.put(entry.scene, entry);
+            }
+        }
+        scenes.sort((a, b) -> Integer.compare(a.index, b.index));
+        return new ProjectFile(file, topic, creativity, modifiedTopic, story, filter,
+                Collections.unmodifiableList(scenes), thumbnails, filtered, head);
+    }
+
+    // Writes the project to a temporary file and moves it over `file`, so an existing
+    // project (which the scenes may still be reading from) is replaced only when the new
+    // one is complete. Returns the saved project, opened.
+    static ProjectFile save(Path file, String topic, String creativity, String modifiedTopic, String story,
+                            String filter, List<SceneDraft> drafts) throws IOException {
+        JsonWriter json = new JsonWriter(story.length() + 1024).beginObject()
+                .name("topic").value(topic)
+                .name("creativity").value(creativity)
+                .name("modifiedTopic").value(modifiedTopic)
+                .name("story").value(story)
+                .name("filter").value(filter)
+                .name("scenes").beginArray();
+        for (SceneDraft draft : drafts) {
+            json.beginObject()
+                    .name("index").value(draft.scene.index)
+                    .name("description").value(draft.scene.description)
+                    .endObject();
+        }
+        byte[] metadata = json.endArray().endObject().toString().getBytes(StandardCharsets.UTF_8);
+
+        // Lay out every section first; only the blobs are written straight from their sources.
+        List<Entry> entries = new ArrayList<>();
+        long offset = HEADER_BYTES + (long) ENTRY_BYTES * drafts.size() * 3;
+        for (SceneDraft draft : drafts) {
+            long length = 4L * draft.thumbnail.getWidth() * draft.thumbnail.getHeight();
+            entries.add(new Entry(THUMBNAIL, draft.scene.index, offset, length,
+                    draft.thumbnail.getWidth(), draft.thumbnail.getHeight()));
+            offset += length;
+        }
+        long metadataOffset = offset;
+        long blobsOffset = metadataOffset + metadata.length;
+        offset = blobsOffset;
+        for (SceneDraft draft : drafts) {
+            long length = draft.scene.imageLength >= 0 ? draft.scene.imageLength : Files.size(draft.scene.imageFile);
+            entries.add(new Entry(ORIGINAL, draft.scene.index, offset, length, 0, 0));
+            offset += length;
+        }
+        for (SceneDraft draft : drafts) {
+            if (draft.filteredPng != null) {
+                entries.add(new Entry(FILTERED, draft.scene.index, offset, draft.filteredPng.length, 0, 0));
+                offset += draft.filteredPng.length;
+            }
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(Math.toIntExact(blobsOffset));
+        head.putLong(MAGIC).putInt(entries.size()).putInt(metadata.length).putLong(metadataOffset).putLong(blobsOffset);
+        head.position(HEADER_BYTES);
+        for (Entry entry : entries) {
+            head.putInt(entry.kind).putInt(entry.scene).putLong(entry.offset).putLong(entry.length)
+                    .putInt(entry.width).putInt(entry.height);
+        }
+        for (int i = 0; i < drafts.size(); i++) {
+            BufferedImage thumbnail = drafts.get(i).thumbnail;
+            head.position(Math.toIntExact(entries.get(i).offset)); // thumbnails come first in entries
+            for (int rgb : thumbnail.getRGB(0, 0, thumbnail.getWidth(), thumbnail.getHeight(), null, 0, thumbnail.getWidth())) {
+                head.putInt(rgb & 0xFFFFFF);
+            }
+        }
+        head.position(Math.toIntExact(metadataOffset));
+        head.put(metadata).flip();
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (head.hasRemaining()) {
+                    out.write(head);
+                }
+                for (SceneDraft draft : drafts) {
+                    copyImage(draft.scene, out);
+                }
+                for (SceneDraft draft : drafts) {
+                    if (draft.filteredPng != null) {
+                        ByteBuffer png = ByteBuffer.wrap(draft.filteredPng);
+                        while (png.hasRemaining()) {
+                            out.write(png);
+                        }
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return open(file);
+    }
+
+    // Copies the encoded original kernel-to-kernel where the platform allows it.
+    private static void copyImage(SceneStore.Scene scene, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(scene.imageFile, StandardOpenOption.READ)) {
+            long position = scene.imageLength >= 0 ? scene.imageOffset : 0;
+            long remaining = scene.imageLength >= 0 ? scene.imageLength : in.size();
+            while (remaining > 0) {
+                long copied = in.transferTo(position, remaining, out);
+                if (copied <= 0) {
+                    throw new IOException("Image for scene " + scene.index + " is shorter than expected: " + scene.imageFile);
+                }
+                position += copied;
+                remaining -= copied;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ac.kent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// One storyboard at a time against the local StubApiServer, with the rewrite and the
+// story as two streamed calls (separate) and as RequestPlanner's one structured call
+// (combined), alternating so both see the same conditions. Scenes and images overlap
+// the story through StoryPipeline as in the GUI. Per plan it reports p50 and mean time
+// from Generate to the first story token, to the end of the story and to the last image,
+// and API requests per storyboard; then what the combined plan saves per storyboard.
+// The response cache is bypassed and rate limits are off.
+// Usage: java ac.kent.RequestPlanBenchmark [storyboards] [latencyMs] [tokenDelayMs]
+public class RequestPlanBenchmark {
+    private static final String[] PLANS = {"separate", "combined"};
+    private static final String[] FIELDS = {"firstToken", "story", "storyboard"};
+
+    public static void main(String[] args) throws Exception {
+        int storyboards = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int tokenDelayMs = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        try (StubApiServer stub = new StubApiServer(0, latencyMs, 0, 0, tokenDelayMs, 42)) {
+            // All are read once when the classes using them are first loaded, which is below.
+            System.setProperty("filmassistant.api.base", stub.baseUrl());
+            System.setProperty("filmassistant.cache.bypass", "true");
+            System.setProperty("filmassistant.limits.chat.rpm", "0");
+            System.setProperty("filmassistant.limits.chat.tpm", "0");
+            System.setProperty("filmassistant.limits.images.rpm", "0");
+
+            Path output = Files.createTempDirectory("request-plan");
+            for (int i = 0; i < 2; i++) { // warm up class loading, JIT and the connection pool
+                for (int plan = 0; plan < PLANS.length; plan++) {
+                    storyboard(output, plan, -1 - i);
+                }
+            }
+
+            long[][][] samples = new long[PLANS.length][FIELDS.length][storyboards];
+            long[] requests = new long[PLANS.length];
+            for (int n = 0; n < storyboards; n++) {
+                for (int plan = 0; plan < PLANS.length; plan++) {
+                    long served = stub.served();
+                    long[] times = storyboard(output, plan, n);
+                    requests[plan] += stub.served() - served;
+                    for (int f = 0; f < FIELDS.length; f++) {
+                        samples[plan][f][n] = times[f];
+                    }
+                }
+            }
+
+            System.out.printf(Locale.ROOT, "Stub: latency %dms, %dms per streamed token, %d storyboards per plan%n",
+                    latencyMs, tokenDelayMs, storyboards);
+            double[][] means = new double[PLANS.length][FIELDS.length];
+            for (int plan = 0; plan < PLANS.length; plan++) {
+                StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-9s", PLANS[plan]));
+                for (int f = 0; f < FIELDS.length; f++) {
+                    long[] sorted = samples[plan][f].clone();
+                    Arrays.sort(sorted);
+                    means[plan][f] = Arrays.stream(sorted).average().orElse(0) / 1e6;
+                    line.append(String.format(Locale.ROOT, " %s p50=%5.0fms mean=%5.0fms", FIELDS[f],
+                            sorted[storyboards / 2] / 1e6, means[plan][f]));
+                }
+                line.append(String.format(Locale.ROOT, " requests/storyboard=%.1f", requests[plan] / (double) storyboards));
+                System.out.println(line);
+            }
+            StringBuilder saved = new StringBuilder("saved    ");
+            for (int f = 0; f < FIELDS.length; f++) {
+                saved.append(String.format(Locale.ROOT, " %s %5.0fms", FIELDS[f], means[0][f] - means[1][f]));
+            }
+            System.out.println(saved + " (mean, per storyboard)");
+        }
+    }
+
+    // Generate to first story token, end of story and last image, in nanoseconds.
+    private static long[] storyboard(Path output, int plan, int n) throws Exception {
+        RequestPlanner.useStructured(plan == 1);
+        long start = System.nanoTime();
+        long[] times = new long[FIELDS.length];
+        String topic = "A lighthouse keeper finds message number " + n + " at " + start;
+        StoryPipeline pipeline = new StoryPipeline(Main::generateImageDescriptionsFromStory,
+                (index, description) -> new ImageStage.SceneImage(index, description,
+                        Main.fetchSceneImage(description, output.resolve(plan + "-" + n + "-image" + index + ".png")), null),
+                ImageStage.DEFAULT_CONCURRENCY, scene -> { });
+        try {
+            Main.writeTopicAndStory(topic, "Medium", true, delta -> { }, delta -> {
+                if (times[0] == 0) {
+                    times[0] = System.nanoTime() - start;
+                }
+                pipeline.append(delta);
+            }, hook -> { });
+            times[1] = System.nanoTime() - start;
+            pipeline.finish();
+        } catch (Exception e) {
+            pipeline.cancel();
+            throw e;
+        }
+        times[2] = System.nanoTime() - start;
+        if (!RequestPlanner.structured() && plan == 1) {
+            throw new IllegalStateException("Combined plan fell back to separate requests");
+        }
+        return times;
+    }
+}
@@ -0,0 +1,295 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides which chat completions a Generate makes and with what sampling. By default the
+// creativity rewrite and the story are one call: the model answers in JSON mode with
+// {"topic": ..., "story": ...}, and StoryDecoder pulls both strings out of the stream as
+// it arrives, so the story still shows token by token. Scene lists are asked for as
+// {"scenes": [...]} in JSON mode too. The creativity level picks temperature and top_p
+// as well as the prompt wording.
+//
+// -Dfilmassistant.plan.structured=false keeps the original requests: the rewrite and the
+// story as two calls in turn, and scene lists as a bare array in the prompt. A structured
+// call that a server rejects (HTTP 400) or that has no story in its answer is repeated
+// the original way. Only after filmassistant.plan.maxRejections (default 3) such
+// failures in a row does the planner stop making structured calls for the rest of the run.
+final class RequestPlanner {
+    private static final int MAX_REJECTIONS = Math.max(1, Integer.getInteger("filmassistant.plan.maxRejections", 3));
+
+    private static volatile boolean structured = !"false".equals(System.getProperty("filmassistant.plan.structured"));
+    private static final AtomicInteger rejections = new AtomicInteger();
+
+    private RequestPlanner() {
+    }
+
+    // Sampling per creativity level. Low stays close to the most likely wording; High
+    // samples from the whole distribution and flattens it.
+    enum Creativity {
+        LOW("Low", 0.4, 0.8),
+        MEDIUM("Medium", 0.9, 0.95),
+        HIGH("High", 1.2, 1.0);
+
+        final String label;
+        final double temperature;
+        final double topP;
+
+        Creativity(String label, double temperature, double topP) {
+            this.label = label;
+            this.temperature = temperature;
+            this.topP = topP;
+        }
+
+        // The level for a combo box or batch label, ignoring case; null for anything else,
+        // which leaves sampling at the API's defaults.
+        static Creativity of(String label) {
+            for (Creativity level : values()) {
+                if (level.label.equalsIgnoreCase(label == null ? "" : label.trim())) {
+                    return level;
+                }
+            }
+            return null;
+        }
+
+        // For cache keys: different sampling, different answer.
+        String sampling() {
+            return String.format(Locale.ROOT, "temperature=%s,top_p=%s", temperature, topP);
+        }
+    }
+
+    static final class TopicAndStory {
+        final String topic;
+        final String story;
+
+        TopicAndStory(String topic, String story) {
+            this.topic = topic;
+            this.story = story;
+        }
+    }
+
+    // A JSON-mode answer that is not the object asked for.
+    static final class UnstructuredResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnstructuredResponseException(String message) {
+            super(message);
+        }
+    }
+
+    // True while requests may use JSON mode and the combined rewrite and story.
+    static boolean structured() {
+        return structured;
+    }
+
+    static void useStructured(boolean enabled) {
+        structured = enabled;
+        rejections.set(0);
+    }
+
+    // Whether a structured request that failed with e should be repeated the separate way.
+    // Too many of those in a row turn structured requests off.
+    static boolean fallBack(IOException e) {
+        boolean rejected = e instanceof UnstructuredResponseException
+                || e instanceof RequestScheduler.ApiException && ((RequestScheduler.ApiException) e).statusCode == 400;
+        if (!rejected) {
+            return false;
+        }
+        int inARow = rejections.incrementAndGet();
+        System.out.println("Structured request failed, repeating it as separate requests: " + e.getMessage());
+        if (inARow >= MAX_REJECTIONS && structured) {
+            structured = false;
+            System.out.println(inARow + " structured requests failed in a row, using separate requests from now on");
+        }
+        return true;
+    }
+
+    // A structured request got the answer it asked for.
+    static void succeeded() {
+        rejections.set(0);
+    }
+
+    // Whether content is the whole combined object, with a story; only that is worth caching.
+    static boolean isComplete(String content) {
+        StoryDecoder decoder = new StoryDecoder(delta -> { }, delta -> { });
+        decoder.decode(content);
+        return decoder.complete();
+    }
+
+    // The combined answer in one piece, as finish() reads it.
+    static TopicAndStory decode(String content, String originalTopic) throws UnstructuredResponseException {
+        StoryDecoder decoder = new StoryDecoder(delta -> { }, delta -> { });
+        decoder.decode(content);
+        return decoder.finish(originalTopic);
+    }
+
+    // Reads the combined answer, {"topic": "...", "story": "..."}, from content deltas
+    // that split it anywhere, even inside an escape. Decoded topic text goes to onTopic
+    // and story text to onStory as soon as it is complete; other members are skipped.
+    // Anything but a JSON object of strings stops the decoding, and finish() reports it.
+    static final class StoryDecoder implements ChatStream.DeltaListener {
+        private enum State { START, MEMBER, NAME, COLON, VALUE, END, INVALID }
+
+        private final ChatStream.DeltaListener onTopic;
+        private final ChatStream.DeltaListener onStory;
+        private final StringBuilder topic = new StringBuilder();
+        private final StringBuilder story = new StringBuilder();
+        private final StringBuilder name = new StringBuilder();
+        private final StringBuilder skipped = new StringBuilder();
+        private int topicSent;
+        private int storySent;
+        private State state = State.START;
+        private StringBuilder value;
+        private boolean escaped;
+        // Hex digits of a \\u escape still to come, and the code unit so far.
+        private int unicodeDigits;
+        private int unicode;
+
+        StoryDecoder(ChatStream.DeltaListener onTopic, ChatStream.DeltaListener onStory) {
+            this.onTopic = onTopic;
+            this.onStory = onStory;
+        }
+
+        @Override
+        public void onDelta(String delta) throws InterruptedException {
+            decode(delta);
+            topicSent = send(topic, topicSent, onTopic);
+            storySent = send(story, storySent, onStory);
+        }
+
+        // True once any topic or story text has been passed on.
+        boolean started() {
+            return topicSent > 0 || storySent > 0;
+        }
+
+        // True once the closing brace of an object with a story has been read.
+        boolean complete() {
+            return state == State.END && story.length() > 0;
+        }
+
+        // The decoded answer; the original topic stands in for a missing rewrite. A story
+        // cut off mid-string (at max_tokens, say) is kept, as the separate call keeps it.
+        TopicAndStory finish(String originalTopic) throws UnstructuredResponseException {
+            if (story.length() == 0) {
+                throw new UnstructuredResponseException(state == State.INVALID
+                        ? "Combined response is not a JSON object of strings" : "Combined response has no story");
+            }
+            return new TopicAndStory(topic.length() > 0 ? topic.toString() : originalTopic, story.toString());
+        }
+
+        private void decode(String delta) {
+            for (int i = 0; i < delta.length() && state != State.INVALID; i++) {
+                accept(delta.charAt(i));
+            }
+        }
+
+        // Passes on text added since sent, holding back a trailing high surrogate until its pair arrives.
+        private static int send(StringBuilder text, int sent, ChatStream.DeltaListener listener) throws InterruptedException {
+            int end = text.length();
+            if (end > sent && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            if (end > sent) {
+                listener.onDelta(text.substring(sent, end));
+            }
+            return end;
+        }
+
+        private void accept(char c) {
+            switch (state) {
+                case START:
+                    if (c == '{') {
+                        state = State.MEMBER;
+                    } else if (!Character.isWhitespace(c)) {
+                        state = State.INVALID;
+                    }
+                    break;
+                case MEMBER:
+                    if (c == '"') {
+                        name.setLength(0);
+                        state = State.NAME;
+                    } else if (c == '}') {
+                        state = State.END;
+                    } else if (c != ',' && !Character.isWhitespace(c)) {
+                        state = State.INVALID;
+                    }
+                    break;
+                case NAME:
+                    if (string(c, name)) {
+                        state = State.COLON;
+                    }
+                    break;
+                case COLON:
+                    if (c == '"') {
+                        String member = name.toString();
+                        value = member.equals("topic") ? topic : member.equals("story") ? story : skipped;
+                        state = State.VALUE;
+                    } else if (c != ':' && !Character.isWhitespace(c)) {
+                        state = State.INVALID;
+                    }
+                    break;
+                case VALUE:
+                    if (string(c, value)) {
+                        skipped.setLength(0);
+                        state = State.MEMBER;
+                    }
+                    break;
+                default:
+                    break; // END ignores trailing whitespace; INVALID is not fed
+            }
+        }
+
+        // One character inside a string; true at its closing quote.
+        private boolean string(char c, StringBuilder into) {
+            if (unicodeDigits > 0) {
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    state = State.INVALID;
+                    return false;
+                }
+                unicode = unicode << 4 | digit;
+                if (--unicodeDigits == 0) {
+                    into.append((char) unicode);
+                }
+                return false;
+            }
+            if (escaped) {
+                escaped = false;
+                switch (c) {
+                    case 'n':
+                        into.append('\n');
+                        break;
+                    case 't':
+                        into.append('\t');
+                        break;
+                    case 'r':
+                        into.append('\r');
+                        break;
+                    case 'b':
+                        into.append('\b');
+                        break;
+                    case 'f':
+                        into.append('\f');
+                        break;
+                    case 'u':
+                        unicodeDigits = 4;
+                        unicode = 0;
+                        break;
+                    default:
+                        into.append(c); // \" \\ \/
+                }
+                return false;
+            }
+            if (c == '\\') {
+                escaped = true;
+                return false;
+            }
+            if (c == '"') {
+                return true;
+            }
+            into.append(c);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Every OpenAI API call goes through here. Each endpoint has token buckets for requests
+// and tokens per minute, and a request waits for both before it is sent. 429 and 5xx
+// answers and I/O failures are retried with jittered exponential backoff, or after the
+// server's Retry-After when it sends one; a 429 also holds back every other request to
+// that endpoint for the same time. An image request is billed once the server has it, so
+// of its I/O failures only those before anything was sent (no connection) are retried. Only 2xx responses are returned, anything else ends
+// in an ApiException. call() additionally coalesces identical requests: while one is in
+// flight, callers with the same key wait for its answer instead of sending their own.
+// Interrupting the calling thread aborts the exchange; callers waiting on an interrupted
+// request send it again rather than failing with it.
+final class RequestScheduler {
+    enum Endpoint {
+        CHAT("chat", 3_500, 60_000),
+        IMAGES("images", 5, 0);
+
+        final String name;
+        final int defaultRequestsPerMinute;
+        final int defaultTokensPerMinute;
+
+        Endpoint(String name, int defaultRequestsPerMinute, int defaultTokensPerMinute) {
+            this.name = name;
+            this.defaultRequestsPerMinute = defaultRequestsPerMinute;
+            this.defaultTokensPerMinute = defaultTokensPerMinute;
+        }
+    }
+
+    // A request that failed for good: a non-retryable status, or retries exhausted.
+    static final class ApiException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        ApiException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    // Completion tokens assumed per chat request when charging the tokens-per-minute bucket.
+    private static final int CHAT_COMPLETION_TOKENS = Integer.getInteger("filmassistant.limits.chat.completionTokens", 800);
+
+    private static final RequestScheduler SHARED = new RequestScheduler(ApiClient.shared(),
+            Integer.getInteger("filmassistant.retry.maxAttempts", 5),
+            Duration.ofMillis(Long.getLong("filmassistant.retry.baseDelayMs", 500)),
+            Duration.ofMillis(Long.getLong("filmassistant.retry.maxDelayMs", 30_000)));
+
+    private final ApiClient client;
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final Map<Endpoint, Limiter> limiters = new EnumMap<>(Endpoint.class);
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    // Limits are read from filmassistant.limits.<endpoint>.rpm and .tpm; 0 means unlimited.
+    RequestScheduler(ApiClient client, int maxAttempts, Duration baseDelay, Duration maxDelay) {
+        this.client = client;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayNanos = baseDelay.toNanos();
+        this.maxDelayNanos = maxDelay.toNanos();
+        for (Endpoint endpoint : Endpoint.values()) {
+            String prefix = "filmassistant.limits." + endpoint.name;
+            limiters.put(endpoint, new Limiter(
+                    Integer.getInteger(prefix + ".rpm", endpoint.defaultRequestsPerMinute),
+                    Integer.getInteger(prefix + ".tpm", endpoint.defaultTokensPerMinute)));
+        }
+    }
+
+    static RequestScheduler shared() {
+        return SHARED;
+    }
+
+    // Sends the request, or joins an identical one already in flight, and returns the body.
+    // key must identify the request content, e.g. its response-cache key.
+    String call(Endpoint endpoint, String key, HttpRequest request) throws IOException, InterruptedException {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing;
+        while ((existing = inFlight.putIfAbsent(key, mine)) != null) {
+            coalesced.incrementAndGet();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    // The leader's generation was cancelled, not the request: send it ourselves.
+                    inFlight.remove(key, existing);
+                    continue;
+                }
+                throw new IOException("Coalesced " + endpoint.name + " request failed: " + e.getCause().getMessage(),
+                        e.getCause());
+            }
+        }
+        try {
+            String body = send(endpoint, request, HttpResponse.BodyHandlers.ofString()).body();
+            if (endpoint == Endpoint.CHAT) {
+                // Counted once here, not once per coalesced caller.
+                Metrics.addTokens(JsonReader.findLong(body, 0, "usage", "prompt_tokens"),
+                        JsonReader.findLong(body, 0, "usage", "completion_tokens"));
+            }
+            mine.complete(body);
+            return body;
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    <T> HttpResponse<T> send(Endpoint endpoint, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler)
+            throws IOException, InterruptedException {
+        Limiter limiter = limiters.get(endpoint);
+        long tokens = estimateTokens(endpoint, request);
+        for (int attempt = 1; ; attempt++) {
+            limiter.acquire(tokens);
+            sent.incrementAndGet();
+            HttpResponse<T> response;
+            try {
+                response = client.send(request, bodyHandler);
+            } catch (IOException e) {
+                if (attempt >= maxAttempts || !isRetryable(endpoint, e)) {
+                    throw e;
+                }
+                retry(endpoint, attempt, backoffNanos(attempt), e.toString());
+                continue;
+            }
+
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                return response;
+            }
+            String detail = drain(response.body());
+            if (!isRetryable(status) || attempt >= maxAttempts) {
+                throw new ApiException(status, endpoint.name + " request failed with HTTP " + status
+                        + (attempt > 1 ? " after " + attempt + " attempts" : "") + ": " + detail);
+            }
+            // A server's Retry-After is honoured up to the longest backoff we would choose ourselves.
+            long delayNanos = retryAfterNanos(response).map(nanos -> Math.min(nanos, maxDelayNanos))
+                    .orElse(backoffNanos(attempt));
+            if (status == 429) {
+                limiter.pause(delayNanos);
+            }
+            retry(endpoint, attempt, delayNanos, "HTTP " + status);
+        }
+    }
+
+    private void retry(Endpoint endpoint, int attempt, long delayNanos, String reason) throws InterruptedException {
+        retries.incrementAndGet();
+        System.out.println("Retrying " + endpoint.name + " request (attempt " + (attempt + 1) + " of " + maxAttempts
+                + ") in " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + "ms after " + reason);
+        TimeUnit.NANOSECONDS.sleep(delayNanos);
+    }
+
+    // A chat request is cheap to repeat, so any I/O failure is worth another try. An image
+    // POST that timed out or lost its connection may still have been drawn and billed, so
+    // only a failure to connect at all is retried.
+    private static boolean isRetryable(Endpoint endpoint, IOException e) {
+        if (endpoint != Endpoint.IMAGES) {
+            return true;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof HttpConnectTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    // Equal jitter: half the exponential step is fixed and half random, so concurrent
+    // retries spread out but none comes back almost immediately.
+    private long backoffNanos(int attempt) {
+        long step = Math.min(maxDelayNanos, baseDelayNanos << Math.min(attempt - 1, 20));
+        return step / 2 + ThreadLocalRandom.current().nextLong(step / 2 + 1);
+    }
+
+    // OpenAI sends retry-after-ms; standard Retry-After is either seconds or an HTTP date.
+    private static Optional<Long> retryAfterNanos(HttpResponse<?> response) {
+        try {
+            Optional<String> millis = response.headers().firstValue("retry-after-ms");
+            if (millis.isPresent()) {
+                return Optional.of(TimeUnit.MILLISECONDS.toNanos((long) Double.parseDouble(millis.get())));
+            }
+            Optional<String> value = response.headers().firstValue("retry-after");
+            if (value.isEmpty()) {
+                return Optional.empty();
+            }
+            String retryAfter = value.get().trim();
+            if (retryAfter.chars().allMatch(Character::isDigit)) {
+                return Optional.of(TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter)));
+            }
+            ZonedDateTime at = ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Optional.of(Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toNanos()));
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Reads (and for streamed bodies, closes) an error response body for the exception message.
+    private static String drain(Object body) {
+        String text;
+        if (body instanceof Stream) {
+            try (Stream<?> lines = (Stream<?>) body) {
+                text = lines.map(String::valueOf).collect(Collectors.joining("\n"));
+            }
+        } else {
+            text = String.valueOf(body);
+        }
+        return text.length() > 500 ? text.substring(0, 500) + "..." : text;
+    }
+
+    // Rough prompt size (four bytes per token) plus the completion allowance.
+    private static long estimateTokens(Endpoint endpoint, HttpRequest request) {
+        if (endpoint != Endpoint.CHAT) {
+            return 0;
+        }
+        long bodyBytes = request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L);
+        return Math.max(0, bodyBytes) / 4 + CHAT_COMPLETION_TOKENS;
+    }
+
+    private final class Limiter {
+        private final TokenBucket requests;
+        private final TokenBucket tokens;
+        private volatile long pausedUntil = System.nanoTime();
+
+        Limiter(int requestsPerMinute, int tokensPerMinute) {
+            this.requests = new TokenBucket(requestsPerMinute);
+            this.tokens = new TokenBucket(tokensPerMinute);
+        }
+
+        void acquire(long tokenCount) throws InterruptedException {
+            long start = System.nanoTime();
+            long pause = pausedUntil - start;
+            if (pause > 0) {
+                TimeUnit.NANOSECONDS.sleep(pause);
+            }
+            requests.acquire(1);
+            try {
+                tokens.acquire(tokenCount);
+            } catch (InterruptedException e) {
+                requests.refund(1); // the request is never sent
+                throw e;
+            }
+            throttledNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        synchronized void pause(long nanos) {
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + nanos);
+        }
+    }
+
+    // Refills continuously at perMinute / 60s up to a burst of perMinute. A caller that
+    // finds too few tokens takes them anyway, leaving the balance negative, and sleeps
+    // until the refill covers it; later callers queue behind it in arrival order. A caller
+    // interrupted while it sleeps gives its tokens back.
+    private static final class TokenBucket {
+        private final double capacity;
+        private final double perNano;
+        private double available;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(int perMinute) {
+            this.capacity = perMinute;
+            this.perNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+            this.available = perMinute;
+        }
+
+        void acquire(long count) throws InterruptedException {
+            if (capacity <= 0 || count <= 0) {
+                return; // unlimited
+            }
+            long taken = (long) Math.min(count, capacity);
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                available = Math.min(capacity, available + (now - lastRefill) * perNano);
+                lastRefill = now;
+                available -= taken;
+                waitNanos = available >= 0 ? 0 : (long) (-available / perNano);
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    refund(taken);
+                    throw e;
+                }
+            }
+        }
+
+        synchronized void refund(long count) {
+            if (capacity > 0 && count > 0) {
+                available = Math.min(capacity, available + Math.min(count, capacity));
+            }
+        }
+    }
+
+    Stats stats() {
+        return new Stats(sent.get(), retries.get(), coalesced.get(), throttledNanos.get());
+    }
+
+    static final class Stats {
+        final long sent;
+        final long retries;
+        final long coalesced;
+        final long throttledNanos;
+
+        Stats(long sent, long retries, long coalesced, long throttledNanos) {
+            this.sent = sent;
+            this.retries = retries;
+            this.coalesced = coalesced;
+            this.throttledNanos = throttledNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d retries=%d coalesced=%d throttledMs=%d",
+                    sent, retries, coalesced, TimeUnit.NANOSECONDS.toMillis(throttledNanos));
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package ac.kent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Content-addressed cache for OpenAI responses. Keys are SHA-256 hashes of the model,
+// prompts and request parameters. Entries live in a small in-memory
+// LRU tier backed by files under data/cache/, both bounded by size and both subject to
+// the same TTL. Image entries hold the downloaded image bytes, never the expiring URL.
+final class ResponseCache {
+    private static final boolean BYPASS = Boolean.getBoolean("filmassistant.cache.bypass");
+
+    private static final ResponseCache SHARED = new ResponseCache(
+            Paths.get(System.getProperty("user.dir"), "data", "cache"),
+            Long.getLong("filmassistant.cache.maxMemoryMb", 64) << 20,
+            Long.getLong("filmassistant.cache.maxDiskMb", 512) << 20,
+            Long.getLong("filmassistant.cache.ttlHours", 24 * 7) * 3_600_000L);
+
+    interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    private static final class MemoryEntry {
+        final byte[] value;
+        final long storedAt;
+
+        MemoryEntry(byte[] value, long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final Path directory;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final long ttlMillis;
+
+    // Both maps are access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, MemoryEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+    private boolean diskIndexLoaded;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    ResponseCache(Path directory, long maxMemoryBytes, long maxDiskBytes, long ttlMillis) {
+        this.directory = directory;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    static ResponseCache shared() {
+        return SHARED;
+    }
+
+    static String key(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                // Length-prefix every part so ("ab", "c") and ("a", "bc") never collide.
+                digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+                digest.update((byte) ':');
+                digest.update(bytes);
+            }
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    String computeString(String key, Loader<String> loader) throws Exception {
+        return computeString(key, loader, value -> true);
+    }
+
+    // As above, but a loaded value is only stored when cacheable accepts it; it is returned either way.
+    String computeString(String key, Loader<String> loader, Predicate<String> cacheable) throws Exception {
+        String cached = getString(key);
+        if (cached != null) {
+            return cached;
+        }
+        String value = loader.load();
+        if (value != null && cacheable.test(value)) {
+            putString(key, value);
+        }
+        return value;
+    }
+
+    String getString(String key) {
+        byte[] cached = get(key);
+        return cached == null ? null : new String(cached, StandardCharsets.UTF_8);
+    }
+
+    void putString(String key, String value) {
+        put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // File entries bypass the memory tier: the cached file is hard-linked (or copied, where
+    // links are unsupported) into place, so image bytes never pass through the heap.
+    boolean getFile(String key, Path target) {
+        if (BYPASS) {
+            return false;
+        }
+        Path file = directory.resolve(key);
+        try {
+            if (Files.exists(file)) {
+                if (System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > ttlMillis) {
+                    expirations.incrementAndGet();
+                    removeFromDisk(key);
+                } else {
+                    linkOrCopy(file, target);
+                    synchronized (diskIndex) {
+                        diskIndex.get(key); // refresh LRU position
+                    }
+                    diskHits.incrementAndGet();
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cache read failed for " + key + ": " + e.getMessage());
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    void putFile(String key, Path source) {
+        if (BYPASS) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            long size = Files.size(source);
+            linkOrCopy(source, directory.resolve(key));
+            synchronized (diskIndex) {
+                loadDiskIndex();
+                Long previous = diskIndex.put(key, size);
+                diskBytes += size - (previous == null ? 0 : previous);
+            }
+            evictFromDisk();
+        } catch (IOException e) {
+            System.out.println("Cache write failed for " + key + ": " + e.getMessage());
+        }
+    }
+
+    // Always goes through a temporary name and a move, so the target's old inode (which
+    // may be shared with another link) is replaced rather than written into.
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + "." + Thread.currentThread().getId() + ".link");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createLink(tmp, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    byte[] get(String key) {
+        if (BYPASS) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            MemoryEntry entry = memory.get(key);
+            if (entry != null) {
+                if (now - entry.storedAt <= ttlMillis) {
+                    memoryHits.incrementAndGet();
+                    return entry.value;
+                }
+                memory.remove(key);
+                memoryBytes -= entry.value.length;
+            }
+        }
+
+        Path file = directory.resolve(key);
+        try {
+            if (Files.exists(file)) {
+                long storedAt = Files.getLastModifiedTime(file).toMillis();
+                if (now - storedAt > ttlMillis) {
+                    expirations.incrementAndGet();
+                    removeFromDisk(key);
+                } else {
+                    byte[] value = Files.readAllBytes(file);
+                    synchronized (diskIndex) {
+                        diskIndex.get(key); // refresh LRU position
+                    }
+                    putInMemory(key, value, storedAt);
+                    diskHits.incrementAndGet();
+                    return value;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cache read failed for " + key + ": " + e.getMessage());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String key, byte[] value) {
+        if (BYPASS) {
+            return;
+        }
+        putInMemory(key, value, System.currentTimeMillis());
+        try {
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tmp, value);
+            Files.move(tmp, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (diskIndex) {
+                loadDiskIndex();
+                Long previous = diskIndex.put(key, (long) value.length);
+                diskBytes += value.length - (previous == null ? 0 : previous);
+            }
+            evictFromDisk();
+        } catch (IOException e) {
+            System.out.println("Cache write failed for " + key + ": " + e.getMessage());
+        }
+    }
+
+    private void putInMemory(String key, byte[] value, long storedAt) {
+        if (value.length > maxMemoryBytes / 4) {
+            return; // a single huge entry would flush the whole hot tier
+        }
+        synchronized (memory) {
+            MemoryEntry previous = memory.put(key, new MemoryEntry(value, storedAt));
+            memoryBytes += value.length - (previous == null ? 0 : previous.value.length);
+            Iterator<MemoryEntry> it = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                memoryBytes -= it.next().value.length;
+                it.remove();
+                memoryEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void evictFromDisk() throws IOException {
+        List<String> victims = new ArrayList<>();
+        synchronized (diskIndex) {
+            Iterator<Map.Entry<String, Long>> it = diskIndex.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                diskBytes -= eldest.getValue();
+                victims.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String victim : victims) {
+            Files.deleteIfExists(directory.resolve(victim));
+            diskEvictions.incrementAndGet();
+        }
+    }
+
+    private void removeFromDisk(String key) throws IOException {
+        synchronized (diskIndex) {
+            loadDiskIndex();
+            Long size = diskIndex.remove(key);
+            if (size != null) {
+                diskBytes -= size;
+            }
+        }
+        Files.deleteIfExists(directory.resolve(key));
+    }
+
+    // Rebuilds the LRU order from file modification times the first time the disk tier is written.
+    private void loadDiskIndex() throws IOException {
+        if (diskIndexLoaded) {
+            return;
+        }
+        diskIndexLoaded = true;
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.endsWith(".tmp") && !name.endsWith(".link")) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(ResponseCache::lastModified));
+        for (Path file : files) {
+            long size = Files.size(file);
+            Long previous = diskIndex.put(file.getFileName().toString(), size);
+            diskBytes += size - (previous == null ? 0 : previous);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    long memoryHits() {
+        return memoryHits.get();
+    }
+
+    long diskHits() {
+        return diskHits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    String stats() {
+        return String.format("memoryHits=%d diskHits=%d misses=%d memoryEvictions=%d diskEvictions=%d expirations=%d memoryBytes=%d diskBytes=%d%s",
+                memoryHits.get(), diskHits.get(), misses.get(), memoryEvictions.get(), diskEvictions.get(), expirations.get(),
+                memoryBytes, diskBytes, BYPASS ? " (bypassed)" : "");
+    }
+}
@@ -0,0 +1,108 @@
+package ac.kent;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// Scaling a decoded scene for the large view: the old one-step bilinear draw into a new
+// 600x600 TYPE_INT_ARGB image against ImageScaler's area average, into a new buffer and
+// into a pooled one. Sources are a square 1024x1024 and a landscape 1792x1024 scene, as
+// packed ints and as the 3-byte BGR raster PNG decoding gives. Besides time and
+// allocation per scale it reports the retained size of the result and the mean error
+// per channel against Image.SCALE_AREA_AVERAGING at the same size (the old path is
+// compared against the stretched 600x600 target it draws).
+// Usage: java ac.kent.ScaleBenchmark [iterations]
+public class ScaleBenchmark {
+    private static final int VIEW = 600;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        ImageScaler.BufferPool pool = new ImageScaler.BufferPool(64L << 20);
+        for (int[] size : new int[][]{{1024, 1024}, {1792, 1024}}) {
+            BufferedImage packed = StubApiServer.sampleImage(size[0], size[1], 3);
+            BufferedImage bgr = new BufferedImage(size[0], size[1], BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g = bgr.createGraphics();
+            g.drawImage(packed, 0, 0, null);
+            g.dispose();
+
+            for (BufferedImage source : new BufferedImage[]{packed, bgr}) {
+                String name = size[0] + "x" + size[1] + (source == packed ? " int" : " bgr");
+                for (int round = 0; round < 2; round++) { // first round is warm-up
+                    boolean print = round == 1;
+                    measure(name + " bilinear 600x600", iterations, print, source, ScaleBenchmark::oldScale);
+                    measure(name + " area average", iterations, print, source,
+                            image -> ImageScaler.scaleToFit(image, VIEW, VIEW));
+                    measure(name + " area pooled", iterations, print, source, image -> {
+                        BufferedImage scaled = ImageScaler.scaleToFit(image, VIEW, VIEW, pool);
+                        pool.release(scaled);
+                        return scaled;
+                    });
+                }
+            }
+        }
+        System.out.println("pool: " + pool);
+    }
+
+    interface Scaler {
+        BufferedImage scale(BufferedImage image);
+    }
+
+    // Main.renderForDisplay before the scaling engine.
+    private static BufferedImage oldScale(BufferedImage image) {
+        BufferedImage resized = new BufferedImage(VIEW, VIEW, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = resized.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.drawImage(image, 0, 0, VIEW, VIEW, null);
+        g2.dispose();
+        return resized;
+    }
+
+    private static void measure(String label, int iterations, boolean print, BufferedImage source, Scaler scaler) {
+        long[] samples = new long[iterations];
+        BufferedImage result = null;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            result = scaler.scale(source);
+            samples[i] = System.nanoTime() - start;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+        if (print) {
+            Arrays.sort(samples);
+            System.out.printf("%-34s p50=%5.2fms p99=%5.2fms alloc/op=%6.0fKB retained=%5dKB %dx%d error=%.2f%n", label,
+                    samples[iterations / 2] / 1e6, samples[(int) (iterations * 0.99)] / 1e6,
+                    allocated / (double) iterations / 1024, 4L * result.getWidth() * result.getHeight() / 1024,
+                    result.getWidth(), result.getHeight(), error(source, result));
+        }
+    }
+
+    private static double error(BufferedImage source, BufferedImage scaled) {
+        Dimension size = new Dimension(scaled.getWidth(), scaled.getHeight());
+        BufferedImage reference = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = reference.createGraphics();
+        g.drawImage(source.getScaledInstance(size.width, size.height, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        g.dispose();
+        long sum = 0;
+        for (int y = 0; y < size.height; y++) {
+            for (int x = 0; x < size.width; x++) {
+                int a = reference.getRGB(x, y);
+                int b = scaled.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    sum += Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                }
+            }
+        }
+        return sum / (3.0 * size.width * size.height);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return Arrays.stream(threads.getThreadAllocatedBytes(threads.getAllThreadIds())).filter(b -> b > 0).sum();
+    }
+}
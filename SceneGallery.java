@@ -0,0 +1,179 @@
+package ac.kent;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FlowLayout;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntConsumer;
+import javax.swing.BorderFactory;
+import javax.swing.ImageIcon;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+
+// A horizontal strip with one tile per generated scene: thumbnail plus caption. Tiles
+// are added in scene order as results arrive, thumbnails are rendered off the EDT and
+// only once a tile scrolls into view, and adding a tile revalidates just this strip
+// rather than re-packing the whole frame. All methods must be called on the EDT.
+final class SceneGallery {
+    static final int THUMB_WIDTH = 180;
+    static final int THUMB_HEIGHT = 180;
+
+    interface ThumbnailLoader {
+        BufferedImage load(int index, int maxWidth, int maxHeight) throws Exception;
+    }
+
+    private final class Tile extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+        final JLabel thumbnail = new JLabel("Loading...", SwingConstants.CENTER);
+        int loadedGeneration = -1;
+        boolean loading;
+
+        Tile(int index, String caption) {
+            super(new BorderLayout(0, 4));
+            this.index = index;
+            thumbnail.setPreferredSize(new Dimension(THUMB_WIDTH, THUMB_HEIGHT));
+            JTextArea text = new JTextArea(caption, 3, 16);
+            text.setLineWrap(true);
+            text.setWrapStyleWord(true);
+            text.setEditable(false);
+            text.setOpaque(false);
+            add(thumbnail, BorderLayout.CENTER);
+            add(text, BorderLayout.SOUTH);
+            setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+            MouseAdapter select = new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    select(Tile.this.index);
+                }
+            };
+            addMouseListener(select);
+            thumbnail.addMouseListener(select);
+            text.addMouseListener(select);
+        }
+    }
+
+    private final ThumbnailLoader loader;
+    private final Executor executor;
+    private final JPanel strip = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 4));
+    private final JScrollPane scrollPane = new JScrollPane(strip,
+            ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
+    private final Map<Integer, Tile> tiles = new TreeMap<>();
+    private IntConsumer selectionListener = index -> { };
+    private int selected = -1;
+    private int generation;
+
+    SceneGallery(ThumbnailLoader loader, Executor executor) {
+        this.loader = loader;
+        this.executor = executor;
+        scrollPane.setBorder(BorderFactory.createEmptyBorder());
+        scrollPane.setPreferredSize(new Dimension(0, THUMB_HEIGHT + 90));
+        scrollPane.getViewport().addChangeListener(e -> loadVisibleThumbnails());
+    }
+
+    JScrollPane component() {
+        return scrollPane;
+    }
+
+    void setSelectionListener(IntConsumer listener) {
+        this.selectionListener = listener;
+    }
+
+    void clear() {
+        tiles.clear();
+        strip.removeAll();
+        selected = -1;
+        generation++;
+        strip.revalidate();
+        strip.repaint();
+    }
+
+    void addScene(int index, String caption) {
+        Tile tile = new Tile(index, caption);
+        tiles.put(index, tile);
+        // Tiles are kept in scene order even though images finish out of order.
+        int position = 0;
+        for (int existing : tiles.keySet()) {
+            if (existing == index) {
+                break;
+            }
+            position++;
+        }
+        strip.add(tile, position);
+        strip.revalidate();
+        // Layout happens later on the EDT; load once the tile has its bounds.
+        SwingUtilities.invokeLater(this::loadVisibleThumbnails);
+        if (selected < 0) {
+            select(index);
+        }
+    }
+
+    // Thumbnails must be rendered again (e.g. the filter changed). Current thumbnails stay
+    // up until their replacements arrive, and off-screen tiles wait until they are shown.
+    void invalidateThumbnails() {
+        generation++;
+        loadVisibleThumbnails();
+    }
+
+    private void select(int index) {
+        Tile previous = tiles.get(selected);
+        if (previous != null) {
+            previous.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        }
+        selected = index;
+        Tile tile = tiles.get(index);
+        if (tile != null) {
+            tile.setBorder(BorderFactory.createLineBorder(Color.GRAY, 4));
+        }
+        selectionListener.accept(index);
+    }
+
+    private void loadVisibleThumbnails() {
+        Rectangle visible = scrollPane.getViewport().getViewRect();
+        for (Tile tile : tiles.values()) {
+            if (tile.loading || tile.loadedGeneration == generation || !tile.getBounds().intersects(visible)) {
+                continue;
+            }
+            tile.loading = true;
+            int requestGeneration = generation;
+            CompletableFuture.supplyAsync(() -> {
+                try {
+                    return loader.load(tile.index, THUMB_WIDTH, THUMB_HEIGHT);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor).whenComplete((image, error) -> SwingUtilities.invokeLater(() -> {
+                tile.loading = false;
+                if (tiles.get(tile.index) != tile) {
+                    return; // gallery was cleared for a new story
+                }
+                if (error != null) {
+                    tile.thumbnail.setText("Failed");
+                    System.out.println("Failed to load thumbnail " + tile.index + ": " + error.getMessage());
+                    tile.loadedGeneration = requestGeneration;
+                    return;
+                }
+                tile.thumbnail.setText(null);
+                tile.thumbnail.setIcon(new ImageIcon(image));
+                tile.loadedGeneration = requestGeneration;
+                if (requestGeneration != generation) {
+                    loadVisibleThumbnails(); // invalidated while loading
+                }
+            }));
+        }
+    }
+}
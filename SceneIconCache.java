@@ -0,0 +1,125 @@
+package ac.kent;
+
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.Icon;
+import javax.swing.JLabel;
+
+// The large scene view's rendered images, one per scene, view size and HiDPI scale, so
+// going back to a scene shows it at once. LRU within maxBytes of pixels. Images the
+// cache evicts go back to the buffer pool they came from, unless the view still shows
+// them. EDT only.
+final class SceneIconCache {
+    // An image drawn at a logical size. On a HiDPI screen the image has scale times as
+    // many pixels, so it lands 1:1 on device pixels; a preview has fewer and is
+    // stretched smoothly.
+    static final class SceneIcon implements Icon {
+        final int scene;
+        final BufferedImage image;
+        final int width;
+        final int height;
+        // Taken from the pool, so it can go back there once nothing shows it.
+        final boolean pooled;
+        // A stand-in until the full render is ready.
+        final boolean preview;
+
+        SceneIcon(int scene, BufferedImage image, int width, int height, boolean pooled, boolean preview) {
+            this.scene = scene;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.pooled = pooled;
+            this.preview = preview;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(image, x, y, width, height, null);
+            g2.dispose();
+        }
+
+        @Override
+        public int getIconWidth() {
+            return width;
+        }
+
+        @Override
+        public int getIconHeight() {
+            return height;
+        }
+
+        long bytes() {
+            return 4L * image.getWidth() * image.getHeight();
+        }
+    }
+
+    private final JLabel view;
+    private final ImageScaler.BufferPool pool;
+    private final long maxBytes;
+    private final Map<String, SceneIcon> icons = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    SceneIconCache(JLabel view, ImageScaler.BufferPool pool, long maxBytes) {
+        this.view = view;
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+    }
+
+    // scale is the screen's HiDPI factor; width and height are the logical view size.
+    static String key(int index, int width, int height, double scale) {
+        return index + "@" + width + "x" + height + "@" + scale;
+    }
+
+    SceneIcon get(String key) {
+        return icons.get(key);
+    }
+
+    void put(String key, SceneIcon icon) {
+        SceneIcon previous = icons.put(key, icon);
+        bytes += icon.bytes();
+        if (previous != null) {
+            bytes -= previous.bytes();
+            recycle(previous);
+        }
+        Iterator<SceneIcon> it = icons.values().iterator();
+        while (bytes > maxBytes && icons.size() > 1 && it.hasNext()) {
+            SceneIcon eldest = it.next();
+            it.remove();
+            bytes -= eldest.bytes();
+            recycle(eldest);
+        }
+    }
+
+    void clear() {
+        List<SceneIcon> evicted = new ArrayList<>(icons.values());
+        icons.clear();
+        bytes = 0;
+        evicted.forEach(this::recycle);
+    }
+
+    // Shows icon in the view. A pooled image the view stops showing goes back to the
+    // pool unless the cache still holds it.
+    void show(Icon icon) {
+        Icon previous = view.getIcon();
+        view.setIcon(icon);
+        if (previous instanceof SceneIcon && previous != icon && !icons.containsValue(previous)) {
+            recycle((SceneIcon) previous);
+        }
+    }
+
+    private void recycle(SceneIcon icon) {
+        if (icon.pooled && view.getIcon() != icon) {
+            pool.release(icon.image);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.imageio.ImageIO;
+
+// The decoded original of every scene in the current story, keyed by scene index, so
+// a filter change can re-render from memory instead of regenerating or re-downloading.
+// Decoded pixels are held within a byte budget; when it is exceeded the least recently
+// used originals are dropped and decoded again on next use, from data/original/ or from
+// the project file they were opened from.
+final class SceneStore {
+    static final long DEFAULT_BUDGET = Long.getLong("filmassistant.scenes.maxMemoryMb", 128) << 20;
+
+    static final class Scene {
+        final int index;
+        final String description;
+        // The encoded original: the whole of imageFile, or imageLength bytes at imageOffset
+        // inside it when the scene was opened from a saved project.
+        final Path imageFile;
+        final long imageOffset;
+        final long imageLength;
+
+        Scene(int index, String description, Path imageFile) {
+            this(index, description, imageFile, 0, -1);
+        }
+
+        Scene(int index, String description, Path imageFile, long imageOffset, long imageLength) {
+            this.index = index;
+            this.description = description;
+            this.imageFile = imageFile;
+            this.imageOffset = imageOffset;
+            this.imageLength = imageLength;
+        }
+
+        InputStream openImage() throws IOException {
+            if (imageLength < 0) {
+                return Files.newInputStream(imageFile);
+            }
+            // Only the range is read, so the rest of a large project file stays untouched.
+            byte[] encoded = new byte[Math.toIntExact(imageLength)];
+            try (FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, imageOffset + buffer.position()) < 0) {
+                        throw new IOException("Truncated image in " + imageFile);
+                    }
+                }
+            }
+            return new ByteArrayInputStream(encoded);
+        }
+    }
+
+    private final long maxBytes;
+    private final Map<Integer, Scene> scenes = new TreeMap<>();
+    private final LinkedHashMap<Integer, BufferedImage> decoded = new LinkedHashMap<>(16, 0.75f, true);
+    private long decodedBytes;
+
+    SceneStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void clear() {
+        scenes.clear();
+        decoded.clear();
+        decodedBytes = 0;
+    }
+
+    synchronized void put(ImageStage.SceneImage sceneImage) {
+        scenes.put(sceneImage.index, new Scene(sceneImage.index, sceneImage.description, sceneImage.imageFile));
+        cache(sceneImage.index, sceneImage.image);
+    }
+
+    // Adds a scene without decoded pixels, or points an existing one at a new copy of the
+    // same image (after saving a project); pixels already decoded for it stay valid.
+    synchronized void put(Scene scene) {
+        scenes.put(scene.index, scene);
+    }
+
+    synchronized List<Scene> scenes() {
+        return new ArrayList<>(scenes.values());
+    }
+
+    synchronized Scene scene(int index) {
+        return scenes.get(index);
+    }
+
+    // The decoded original, from memory or re-decoded from its file on disk.
+    BufferedImage original(int index) throws IOException {
+        Scene scene;
+        synchronized (this) {
+            BufferedImage image = decoded.get(index);
+            if (image != null) {
+                return image;
+            }
+            scene = scenes.get(index);
+        }
+        if (scene == null) {
+            throw new IOException("No scene " + index + " in the current story");
+        }
+        BufferedImage image;
+        try (InputStream in = scene.openImage()) {
+            image = ImageIO.read(in);
+        }
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + scene.imageFile);
+        }
+        synchronized (this) {
+            if (scenes.get(index) == scene) { // not cleared for a new story meanwhile
+                cache(index, image);
+            }
+        }
+        return image;
+    }
+
+    private void cache(int index, BufferedImage image) {
+        BufferedImage previous = decoded.put(index, image);
+        decodedBytes += sizeOf(image) - (previous == null ? 0 : sizeOf(previous));
+        Iterator<BufferedImage> it = decoded.values().iterator();
+        while (decodedBytes > maxBytes && decoded.size() > 1 && it.hasNext()) {
+            decodedBytes -= sizeOf(it.next());
+            it.remove();
+        }
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        long pixelBytes = Math.max(1, image.getColorModel().getPixelSize() / 8);
+        return (long) image.getWidth() * image.getHeight() * pixelBytes;
+    }
+}
@@ -0,0 +1,215 @@
+package ac.kent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// A small staged-pipeline engine. Each stage owns a bounded input queue and a fixed
+// number of worker threads; a full queue blocks the upstream emitter, which gives
+// backpressure all the way back to the source. Every stage keeps its own timing so
+// a run can report where the time went.
+final class StagePipeline {
+    interface Emitter<O> {
+        void emit(O item) throws InterruptedException;
+    }
+
+    interface StageFunction<I, O> {
+        void apply(I input, Emitter<O> emitter) throws Exception;
+    }
+
+    private static final Object END = new Object();
+
+    private final String name;
+    private final List<Stage<?, ?>> stages = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    StagePipeline(String name) {
+        this.name = name;
+    }
+
+    // Entry stage; further stages are chained with Stage.then.
+    <I, O> Stage<I, O> stage(String stageName, int workerCount, int queueCapacity, StageFunction<I, O> function) {
+        Stage<I, O> stage = new Stage<>(stageName, workerCount, queueCapacity, function);
+        stages.add(stage);
+        return stage;
+    }
+
+    void start() {
+        for (Stage<?, ?> stage : stages) {
+            for (int i = 0; i < stage.workerCount; i++) {
+                Thread t = new Thread(stage::work, name + "-" + stage.name + "-" + (i + 1));
+                t.setDaemon(true);
+                workers.add(t);
+                t.start();
+            }
+        }
+    }
+
+    // Waits for every stage to drain after the entry stage has been closed.
+    void await() throws InterruptedException, ExecutionException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new ExecutionException(t);
+        }
+    }
+
+    void cancel() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    String report() {
+        StringBuilder sb = new StringBuilder("Pipeline ").append(name).append(" timings:");
+        for (Stage<?, ?> stage : stages) {
+            sb.append("\n  ").append(stage.stats());
+        }
+        return sb.toString();
+    }
+
+    private void fail(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            cancel();
+        }
+    }
+
+    final class Stage<I, O> {
+        private final String name;
+        private final int workerCount;
+        private final BlockingQueue<Object> queue;
+        private final StageFunction<I, O> function;
+        private final AtomicInteger liveWorkers;
+        private Emitter<O> downstream = item -> { };
+        private Stage<O, ?> next;
+
+        private final AtomicLong itemsIn = new AtomicLong();
+        private final AtomicLong itemsOut = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();
+        private final AtomicInteger peakQueueDepth = new AtomicInteger();
+        private final AtomicLong queueDepthGauge;
+        private volatile long firstStart;
+        private volatile long lastEnd;
+
+        private Stage(String name, int workerCount, int queueCapacity, StageFunction<I, O> function) {
+            this.name = name;
+            this.workerCount = Math.max(1, workerCount);
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+            this.function = function;
+            this.liveWorkers = new AtomicInteger(this.workerCount);
+            this.queueDepthGauge = Metrics.queueDepth(name);
+        }
+
+        <N> Stage<O, N> then(String stageName, int workerCount, int queueCapacity, StageFunction<O, N> nextFunction) {
+            Stage<O, N> stage = stage(stageName, workerCount, queueCapacity, nextFunction);
+            next = stage;
+            downstream = stage::submit;
+            return stage;
+        }
+
+        // Terminal consumer for this stage's output, called on the stage's worker threads.
+        void sink(Emitter<O> sink) {
+            downstream = sink;
+        }
+
+        // Blocks while the queue is full. Once the pipeline has failed the item is dropped
+        // instead, so a producer never waits on workers that are gone; await() reports why.
+        void submit(I item) throws InterruptedException {
+            enqueue(item);
+            peakQueueDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+
+        // No more input; workers exit once the queue drains, then the next stage is closed.
+        void close() throws InterruptedException {
+            for (int i = 0; i < workerCount; i++) {
+                enqueue(END);
+            }
+        }
+
+        private void enqueue(Object item) throws InterruptedException {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+            if (item != END) {
+                queueDepthGauge.incrementAndGet();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work() {
+            try {
+                long[] workerBlockedNanos = {0};
+                Emitter<O> emitter = item -> {
+                    long blockedStart = System.nanoTime();
+                    downstream.emit(item);
+                    long blocked = System.nanoTime() - blockedStart;
+                    workerBlockedNanos[0] += blocked;
+                    blockedNanos.addAndGet(blocked);
+                    itemsOut.incrementAndGet();
+                };
+                while (true) {
+                    Object item = queue.take();
+                    if (item == END) {
+                        break;
+                    }
+                    queueDepthGauge.decrementAndGet();
+                    itemsIn.incrementAndGet();
+                    long start = System.nanoTime();
+                    if (firstStart == 0) {
+                        firstStart = start;
+                    }
+                    long blockedBefore = workerBlockedNanos[0];
+                    function.apply((I) item, emitter);
+                    long end = System.nanoTime();
+                    // Time spent waiting on a full downstream queue is backpressure, not work.
+                    long elapsed = end - start - (workerBlockedNanos[0] - blockedBefore);
+                    busyNanos.addAndGet(elapsed);
+                    maxNanos.accumulateAndGet(elapsed, Math::max);
+                    lastEnd = end;
+                }
+                if (liveWorkers.decrementAndGet() == 0 && next != null) {
+                    next.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                discardQueued();
+            } catch (Throwable t) {
+                fail(t);
+                discardQueued();
+            }
+        }
+
+        // Only after a failure or cancel: items still queued will never run, so they leave
+        // the queue-depth gauge. (On a normal exit the queue holds other workers' END.)
+        private void discardQueued() {
+            Object item;
+            while ((item = queue.poll()) != null) {
+                if (item != END) {
+                    queueDepthGauge.decrementAndGet();
+                }
+            }
+        }
+
+        String stats() {
+            long items = itemsIn.get();
+            return String.format("%-8s items=%d->%d busy=%.0fms avg=%.0fms max=%.0fms blocked=%.0fms active=%.0fms peakQueue=%d",
+                    name, items, itemsOut.get(), busyNanos.get() / 1e6,
+                    items == 0 ? 0 : busyNanos.get() / 1e6 / items, maxNanos.get() / 1e6,
+                    blockedNanos.get() / 1e6, firstStart == 0 ? 0 : (lastEnd - firstStart) / 1e6,
+                    peakQueueDepth.get());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import javax.imageio.ImageIO;
+
+// Everything the first Generate click would otherwise pay for, done on a background
+// thread while the window is already up and the user is typing: the OpenCV native
+// library, the shared HttpClient and its connection to the API (DNS, TCP, TLS and
+// HTTP/2 set-up, by way of the provider's warm-up request), and class loading and
+// first-call initialisation for the JSON codec, ImageIO's PNG plugins and the filter
+// renderers. Every step is idempotent and safe to race with real use: a click during
+// prewarm just waits for or repeats the step it needs.
+final class Startup {
+    private static volatile CompletableFuture<Void> prewarm;
+
+    private Startup() {
+    }
+
+    // Milliseconds since the JVM process started, or -1 if the OS does not say.
+    static long sinceLaunchMillis() {
+        return ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis())
+                .orElse(-1L);
+    }
+
+    // Starts prewarming once; later calls return the same future.
+    static synchronized CompletableFuture<Void> prewarm(GenerationProvider provider) {
+        if (prewarm == null) {
+            prewarm = new CompletableFuture<>();
+            Thread thread = new Thread(() -> run(provider), "startup-prewarm");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+        return prewarm;
+    }
+
+    static boolean isPrewarmed() {
+        CompletableFuture<Void> started = prewarm;
+        return started != null && started.isDone();
+    }
+
+    private static void run(GenerationProvider provider) {
+        long start = System.nanoTime();
+        StringBuilder steps = new StringBuilder();
+        // The connection first: it is mostly waiting on the network, and the other steps
+        // are CPU work that overlaps with it.
+        CompletableFuture<Void> connection = CompletableFuture.runAsync(() -> step(steps, "connect", () -> {
+            HttpResponse<Void> response = ApiClient.shared().send(provider.warmUpRequest(),
+                    HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() == 401) {
+                System.out.println("The API rejected the configured key (HTTP 401)");
+            }
+        }));
+        step(steps, "opencv", FilterEngine::loadNativeLibrary);
+        step(steps, "json", () -> JsonReader.findString(new JsonWriter().beginObject()
+                .name("choices").beginArray().beginObject().name("content").value("warm").endObject().endArray()
+                .endObject().toString(), "content"));
+        step(steps, "imageio", () -> {
+            BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            ImageIO.read(new ByteArrayInputStream(png.toByteArray()));
+        });
+        // The renderers directly rather than FilterChain.apply, which would record these
+        // toy images in the filter latency histogram.
+        step(steps, "filters", () -> {
+            BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+            for (String preset : FilterChain.PRESETS) {
+                FilterChain chain = FilterChain.forName(preset);
+                if (FilterEngine.isAvailable()) {
+                    FilterEngine.apply(image, chain);
+                }
+                JavaFilterRenderer.apply(image, chain);
+            }
+        });
+        connection.join();
+        System.out.printf("Prewarmed in %d ms (%s), %d ms after launch%n",
+                (System.nanoTime() - start) / 1_000_000, steps, sinceLaunchMillis());
+        prewarm.complete(null);
+    }
+
+    interface Step {
+        void run() throws Exception;
+    }
+
+    // A failed step is only logged: the real call will fail the same way and report it.
+    private static void step(StringBuilder steps, String name, Step step) {
+        long start = System.nanoTime();
+        String outcome;
+        try {
+            step.run();
+            outcome = (System.nanoTime() - start) / 1_000_000 + " ms";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            outcome = "interrupted";
+        } catch (Exception | LinkageError e) {
+            outcome = "failed: " + e;
+        }
+        synchronized (steps) {
+            steps.append(steps.length() == 0 ? "" : ", ").append(name).append(' ').append(outcome);
+        }
+    }
+}
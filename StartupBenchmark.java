@@ -0,0 +1,122 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Cold start of the work behind the first Generate click, each sample in a fresh JVM
+// against an in-process StubApiServer with no latency. Without prewarm the click pays
+// for everything; with it, Startup.prewarm has finished first, as it would while the
+// user types. Both run again on an AppCDS archive made by a training run (the same as
+// appcds.sh makes). Per configuration it reports medians of: JVM launch to main(),
+// prewarm time, click to the first streamed story token, the first filter on a
+// 1024x1024 scene, and launch to the first token. The stub is local plain HTTP, so the
+// DNS and TLS part of a real first connection is not in these numbers; the GUI's own
+// "First frame" and "First story token" log lines measure those against the real API.
+// AppCDS only archives classes from jars, so run it with the app classes in a jar.
+// Usage: java ac.kent.StartupBenchmark [runs]
+public class StartupBenchmark {
+    private static final String[] FIELDS = {"main", "prewarm", "firstToken", "firstFilter", "launchToToken"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child(Boolean.parseBoolean(args[1]));
+            System.exit(0); // the stub's HTTP dispatcher thread is not a daemon
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Path archive = Files.createTempDirectory("startup-bench").resolve("app.jsa");
+        try {
+            run(List.of("-XX:ArchiveClassesAtExit=" + archive), true); // training run
+            for (boolean cds : new boolean[]{false, true}) {
+                for (boolean prewarm : new boolean[]{false, true}) {
+                    List<String> options = cds ? List.of("-XX:SharedArchiveFile=" + archive) : List.of();
+                    run(options, prewarm); // warms the OS file cache
+                    long[][] samples = new long[FIELDS.length][runs];
+                    for (int i = 0; i < runs; i++) {
+                        long[] result = run(options, prewarm);
+                        for (int f = 0; f < FIELDS.length; f++) {
+                            samples[f][i] = result[f];
+                        }
+                    }
+                    StringBuilder line = new StringBuilder(String.format("%-22s",
+                            (cds ? "AppCDS, " : "default, ") + (prewarm ? "prewarmed" : "cold")));
+                    for (int f = 0; f < FIELDS.length; f++) {
+                        Arrays.sort(samples[f]);
+                        line.append(String.format(" %s=%dms", FIELDS[f], samples[f][runs / 2]));
+                    }
+                    System.out.println(line);
+                }
+            }
+            System.out.printf("archive: %d KB%n", Files.size(archive) / 1024);
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(archive.getParent());
+        }
+    }
+
+    // Runs one child JVM and returns its numbers, in FIELDS order.
+    private static long[] run(List<String> jvmOptions, boolean prewarm) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-Xshare:auto");
+        command.add("-Djava.awt.headless=true");
+        command.add("-Djava.library.path=" + System.getProperty("java.library.path"));
+        command.add("-Dfilmassistant.provider=stub");
+        command.add("-Dfilmassistant.stub.latencyMs=0");
+        command.add("-Dfilmassistant.cache.bypass=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StartupBenchmark.class.getName());
+        command.add("child");
+        command.add(String.valueOf(prewarm));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = out.readLine()) != null; ) {
+                if (line.startsWith("RESULT ")) {
+                    result = line.substring("RESULT ".length());
+                }
+            }
+        }
+        if (!process.waitFor(2, TimeUnit.MINUTES) || process.exitValue() != 0 || result == null) {
+            throw new IllegalStateException("Child JVM failed: " + command);
+        }
+        return Arrays.stream(result.split(" ")).mapToLong(Long::parseLong).toArray();
+    }
+
+    private static void child(boolean prewarm) throws Exception {
+        long main = Startup.sinceLaunchMillis();
+        long start = System.nanoTime();
+        if (prewarm) {
+            CompletableFuture<Void> warm = Startup.prewarm(Main.PROVIDER);
+            warm.join();
+        }
+        long prewarmMillis = prewarm ? (System.nanoTime() - start) / 1_000_000 : 0;
+
+        long clicked = System.nanoTime();
+        long[] firstToken = {0};
+        Main.streamStoryOnTopic("A lighthouse keeper finds a letter", delta -> {
+            if (firstToken[0] == 0) {
+                firstToken[0] = (System.nanoTime() - clicked) / 1_000_000;
+            }
+        }, hook -> { });
+        long launchToToken = main + prewarmMillis + firstToken[0];
+
+        BufferedImage scene = StubApiServer.sampleImage(1024, 1024, 1);
+        long filterStart = System.nanoTime();
+        FilterChain.forName("Noir").apply(scene);
+        long firstFilter = (System.nanoTime() - filterStart) / 1_000_000;
+
+        System.out.println("RESULT " + main + " " + prewarmMillis + " " + firstToken[0] + " " + firstFilter + " "
+                + launchToToken);
+    }
+}
@@ -0,0 +1,113 @@
+package ac.kent;
+
+import java.util.concurrent.ExecutionException;
+
+// Story -> scenes -> images as overlapping stages. The story is cut into paragraph
+// chunks while it is still streaming in; each chunk goes straight to scene extraction
+// and each scene straight to image generation, so the image for scene 1 is being
+// drawn while scene 3 is still being written. Every chunk but the last gives one scene;
+// the last one, sent at finish(), is asked for all the scenes still unused, so a short
+// story or one without blank-line paragraphs still gets up to MAX_SCENES images.
+final class StoryPipeline {
+    static final int MAX_SCENES = 5;
+    static final int MIN_CHUNK_CHARS = Integer.getInteger("filmassistant.pipeline.minChunkChars", 500);
+
+    interface SceneExtractor {
+        String[] extract(String storyChunk, int maxScenes) throws Exception;
+    }
+
+    interface SceneListener {
+        void onScene(ImageStage.SceneImage scene) throws InterruptedException;
+    }
+
+    static final class StoryChunk {
+        // Index of the chunk's first scene; its scenes are numbered on from there.
+        final int index;
+        final String text;
+        final int maxScenes;
+
+        StoryChunk(int index, String text, int maxScenes) {
+            this.index = index;
+            this.text = text;
+            this.maxScenes = maxScenes;
+        }
+    }
+
+    static final class SceneDescription {
+        final int index;
+        final String description;
+
+        SceneDescription(int index, String description) {
+            this.index = index;
+            this.description = description;
+        }
+    }
+
+    private final StagePipeline pipeline = new StagePipeline("story");
+    private final StagePipeline.Stage<StoryChunk, SceneDescription> scenes;
+    private final StringBuilder buffer = new StringBuilder();
+    private int chunkCount;
+
+    StoryPipeline(SceneExtractor extractor, ImageStage.ImageGenerator generator, int imageConcurrency,
+                  SceneListener listener) {
+        // Only the last chunk has more than one scene, so numbering stays in story order
+        // and the story is capped at MAX_SCENES images.
+        scenes = pipeline.stage("scenes", 2, MAX_SCENES, (StoryChunk chunk, StagePipeline.Emitter<SceneDescription> out) -> {
+            String[] descriptions = extractor.extract(chunk.text, chunk.maxScenes);
+            int count = descriptions == null ? 0 : Math.min(descriptions.length, chunk.maxScenes);
+            for (int i = 0; i < count; i++) {
+                out.emit(new SceneDescription(chunk.index + i, descriptions[i]));
+            }
+        });
+        scenes.then("images", imageConcurrency, MAX_SCENES, (SceneDescription scene, StagePipeline.Emitter<ImageStage.SceneImage> out) ->
+                        out.emit(generator.generate(scene.index, scene.description)))
+                .sink(listener::onScene);
+        pipeline.start();
+    }
+
+    // Feed streamed story text; complete paragraphs are cut off and sent on as soon as
+    // the pending chunk is long enough and the next paragraph has begun, so the text
+    // left for finish() is never empty. The last allowed chunk is held back until
+    // finish() so it covers the whole rest of the story.
+    void append(String delta) throws InterruptedException {
+        buffer.append(delta);
+        int boundary;
+        while (chunkCount < MAX_SCENES - 1 && buffer.length() >= MIN_CHUNK_CHARS
+                && (boundary = buffer.indexOf("\n\n", MIN_CHUNK_CHARS)) >= 0 && hasTextAfter(boundary + 2)) {
+            emitChunk(buffer.substring(0, boundary), 1);
+            buffer.delete(0, boundary + 2);
+        }
+    }
+
+    // End of story: send the remainder and wait for every stage to drain.
+    void finish() throws InterruptedException, ExecutionException {
+        try {
+            emitChunk(buffer.toString(), MAX_SCENES - chunkCount);
+            buffer.setLength(0);
+            scenes.close();
+            pipeline.await();
+        } finally {
+            System.out.println(pipeline.report());
+        }
+    }
+
+    void cancel() {
+        pipeline.cancel();
+    }
+
+    private boolean hasTextAfter(int from) {
+        for (int i = from; i < buffer.length(); i++) {
+            if (!Character.isWhitespace(buffer.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void emitChunk(String text, int maxScenes) throws InterruptedException {
+        if (text.isBlank()) {
+            return;
+        }
+        scenes.submit(new StoryChunk(chunkCount++, text.trim(), maxScenes));
+    }
+}
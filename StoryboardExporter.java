@@ -0,0 +1,409 @@
+package ac.kent;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import javax.imageio.ImageIO;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoWriter;
+import org.opencv.videoio.Videoio;
+
+// Exports the storyboard as a film artifact: an animatic (each scene held for a while
+// with its caption, crossfading into the next) through OpenCV's VideoWriter, or one
+// high-resolution contact sheet through Imgcodecs. Scene images are decoded, filtered,
+// scaled and captioned on the executor, several at a time, and consumed in scene order
+// as they finish; only a window of about one per core is in flight, so a long
+// storyboard never holds all its frames. Crossfade frames are blended natively from the
+// two stills on either side while encoding.
+final class StoryboardExporter {
+    // A scene's image with the current filter applied, at full size.
+    interface ImageSource {
+        BufferedImage image(int index) throws IOException;
+    }
+
+    static final class Scene {
+        final int index;
+        final String caption;
+
+        Scene(int index, String caption) {
+            this.index = index;
+            this.caption = caption;
+        }
+    }
+
+    // Animatic frame size, timing and JPEG quality (1-100), from filmassistant.export.width,
+    // .height, .fps, .holdMs (each scene on its own), .fadeMs (each crossfade, and the
+    // fades from and to black at either end) and .quality.
+    static final class AnimaticSettings {
+        final int width;
+        final int height;
+        final int fps;
+        final int holdFrames;
+        final int fadeFrames;
+        final int quality;
+
+        AnimaticSettings(int width, int height, int fps, int holdMs, int fadeMs, int quality) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.holdFrames = Math.max(1, Math.round(holdMs * fps / 1000f));
+            this.fadeFrames = Math.max(0, Math.round(fadeMs * fps / 1000f));
+            this.quality = quality;
+        }
+
+        static AnimaticSettings configured() {
+            return new AnimaticSettings(
+                    Integer.getInteger("filmassistant.export.width", 1280),
+                    Integer.getInteger("filmassistant.export.height", 720),
+                    Integer.getInteger("filmassistant.export.fps", 24),
+                    Integer.getInteger("filmassistant.export.holdMs", 3000),
+                    Integer.getInteger("filmassistant.export.fadeMs", 750),
+                    Integer.getInteger("filmassistant.export.quality", 85));
+        }
+    }
+
+    static final String ANIMATIC_EXTENSION = "avi";
+    // Contact sheet cells: image width, and the columns (0 picks about a square sheet).
+    private static final int SHEET_CELL_WIDTH = Integer.getInteger("filmassistant.export.sheetCellWidth", 480);
+    private static final int SHEET_COLUMNS = Integer.getInteger("filmassistant.export.sheetColumns", 0);
+    private static final int SHEET_MARGIN = 24;
+    private static final int SHEET_CAPTION_LINES = 4;
+    private static final int JPEG_QUALITY = 92;
+    // Stills being composed ahead of the encoder.
+    private static final int WINDOW = Runtime.getRuntime().availableProcessors() + 1;
+
+    private StoryboardExporter() {
+    }
+
+    // Writes the animatic, Motion-JPEG in an AVI container: the encoder OpenCV always
+    // has built in. Returns the file written, which gets an .avi extension if file has
+    // another one.
+    static Path exportAnimatic(List<Scene> scenes, ImageSource source, Path file, AnimaticSettings settings,
+                               Executor executor) throws IOException, InterruptedException {
+        if (!FilterEngine.isAvailable()) {
+            throw new IOException("Exporting an animatic needs the OpenCV native library");
+        }
+        Path target = withExtension(file, ANIMATIC_EXTENSION);
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path partial = partialFile(target);
+        long start = System.nanoTime();
+        try {
+            int frames = writeAnimatic(scenes, source, partial, settings, executor);
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.printf("Exported animatic %s: %d scenes, %d frames (%.1f s) in %.1f ms%n", target, scenes.size(),
+                    frames, frames / (double) settings.fps, (System.nanoTime() - start) / 1e6);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        return target;
+    }
+
+    // Returns the number of frames written.
+    private static int writeAnimatic(List<Scene> scenes, ImageSource source, Path file, AnimaticSettings settings,
+                                     Executor executor) throws IOException, InterruptedException {
+        VideoWriter writer = new VideoWriter(file.toString(), Videoio.CAP_OPENCV_MJPEG,
+                VideoWriter.fourcc('M', 'J', 'P', 'G'), settings.fps, new Size(settings.width, settings.height), true);
+        if (!writer.isOpened()) {
+            writer.release();
+            throw new IOException("Could not open a video writer for " + file);
+        }
+        writer.set(Videoio.VIDEOWRITER_PROP_QUALITY, settings.quality);
+        int[] frames = {0};
+        Mat black = Mat.zeros(settings.height, settings.width, CvType.CV_8UC3);
+        Mat[] still = {new Mat(settings.height, settings.width, CvType.CV_8UC3),
+                new Mat(settings.height, settings.width, CvType.CV_8UC3)};
+        Mat blend = new Mat();
+        try {
+            Mat[] previous = {black};
+            int[] next = {0};
+            inOrder(scenes, executor, scene -> composeFrame(source.image(scene.index), scene.caption, settings), frame -> {
+                Mat current = still[next[0]++ % 2];
+                current.put(0, 0, ((DataBufferByte) frame.getRaster().getDataBuffer()).getData());
+                frames[0] += crossfade(writer, previous[0], current, blend, settings.fadeFrames);
+                for (int i = 0; i < settings.holdFrames; i++) {
+                    writer.write(current);
+                }
+                frames[0] += settings.holdFrames;
+                previous[0] = current;
+            });
+            if (!scenes.isEmpty()) {
+                frames[0] += crossfade(writer, previous[0], black, blend, settings.fadeFrames);
+            }
+        } finally {
+            writer.release();
+            black.release();
+            still[0].release();
+            still[1].release();
+            blend.release();
+        }
+        return frames[0];
+    }
+
+    // The fade frames from one still to the next, without either end. Returns how many.
+    private static int crossfade(VideoWriter writer, Mat from, Mat to, Mat blend, int frames) {
+        for (int i = 1; i <= frames; i++) {
+            double t = i / (double) (frames + 1);
+            Core.addWeighted(from, 1 - t, to, t, 0, blend);
+            writer.write(blend);
+        }
+        return frames;
+    }
+
+    // One animatic still: the scene letterboxed on black, its caption on a translucent
+    // band along the bottom like a subtitle.
+    private static BufferedImage composeFrame(BufferedImage image, String caption, AnimaticSettings settings) {
+        BufferedImage frame = new BufferedImage(settings.width, settings.height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        drawFitted(g, image, 0, 0, settings.width, settings.height);
+        if (caption != null && !caption.isEmpty()) {
+            int fontSize = Math.max(12, settings.height / 28);
+            g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, fontSize));
+            FontMetrics metrics = g.getFontMetrics();
+            int margin = settings.width / 20;
+            List<String> lines = wrap(caption, metrics, settings.width - 2 * margin, 3);
+            int bandHeight = lines.size() * metrics.getHeight() + fontSize;
+            g.setColor(new Color(0, 0, 0, 150));
+            g.fillRect(0, settings.height - bandHeight - fontSize, settings.width, bandHeight);
+            g.setColor(Color.WHITE);
+            int y = settings.height - bandHeight - fontSize / 2 + metrics.getAscent();
+            for (String line : lines) {
+                g.drawString(line, (settings.width - metrics.stringWidth(line)) / 2, y);
+                y += metrics.getHeight();
+            }
+        }
+        g.dispose();
+        return frame;
+    }
+
+    // Writes every scene in a grid, each with its number and caption under it, below the
+    // title. PNG unless file ends in .jpg or .jpeg. Uses Imgcodecs when the OpenCV native
+    // library is there and ImageIO otherwise.
+    static Path exportContactSheet(List<Scene> scenes, String title, ImageSource source, Path file, Executor executor)
+            throws IOException, InterruptedException {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean jpeg = name.endsWith(".jpg") || name.endsWith(".jpeg");
+        Path target = jpeg ? file : withExtension(file, "png");
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        long start = System.nanoTime();
+
+        int count = Math.max(1, scenes.size());
+        int columns = SHEET_COLUMNS > 0 ? SHEET_COLUMNS : (int) Math.ceil(Math.sqrt(count));
+        int rows = (count + columns - 1) / columns;
+        Font captionFont = new Font(Font.SANS_SERIF, Font.PLAIN, Math.max(11, SHEET_CELL_WIDTH / 28));
+        Font titleFont = new Font(Font.SANS_SERIF, Font.BOLD, Math.max(16, SHEET_CELL_WIDTH / 14));
+        int titleHeight = title == null || title.isEmpty() ? 0 : metrics(titleFont).getHeight() + SHEET_MARGIN;
+        // Square image box, the scene number and caption lines below it.
+        int cellHeight = SHEET_CELL_WIDTH + (SHEET_CAPTION_LINES + 1) * metrics(captionFont).getHeight() + SHEET_MARGIN / 2;
+        BufferedImage sheet = new BufferedImage(SHEET_MARGIN + columns * (SHEET_CELL_WIDTH + SHEET_MARGIN),
+                SHEET_MARGIN + titleHeight + rows * (cellHeight + SHEET_MARGIN), BufferedImage.TYPE_3BYTE_BGR);
+
+        Graphics2D g = sheet.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(new Color(24, 24, 24));
+            g.fillRect(0, 0, sheet.getWidth(), sheet.getHeight());
+            if (titleHeight > 0) {
+                g.setColor(Color.WHITE);
+                g.setFont(titleFont);
+                FontMetrics metrics = g.getFontMetrics();
+                String line = wrap(title, metrics, sheet.getWidth() - 2 * SHEET_MARGIN, 1).get(0);
+                g.drawString(line, SHEET_MARGIN, SHEET_MARGIN + metrics.getAscent());
+            }
+            int[] position = {0};
+            inOrder(scenes, executor, scene -> composeCell(source.image(scene.index), scene, captionFont, cellHeight), cell -> {
+                int column = position[0] % columns;
+                int row = position[0]++ / columns;
+                g.drawImage(cell, SHEET_MARGIN + column * (SHEET_CELL_WIDTH + SHEET_MARGIN),
+                        SHEET_MARGIN + titleHeight + row * (cellHeight + SHEET_MARGIN), null);
+            });
+        } finally {
+            g.dispose();
+        }
+
+        Path partial = partialFile(target);
+        try {
+            if (FilterEngine.isAvailable()) {
+                Mat mat = new Mat(sheet.getHeight(), sheet.getWidth(), CvType.CV_8UC3);
+                try {
+                    mat.put(0, 0, ((DataBufferByte) sheet.getRaster().getDataBuffer()).getData());
+                    boolean written = jpeg
+                            ? Imgcodecs.imwrite(partial.toString(), mat, new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, JPEG_QUALITY))
+                            : Imgcodecs.imwrite(partial.toString(), mat);
+                    if (!written) {
+                        throw new IOException("Could not write " + target);
+                    }
+                } finally {
+                    mat.release();
+                }
+            } else if (!ImageIO.write(sheet, jpeg ? "jpeg" : "png", partial.toFile())) {
+                throw new IOException("No image writer for " + target);
+            }
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        System.out.printf("Exported contact sheet %s: %d scenes, %dx%d in %.1f ms%n", target, scenes.size(),
+                sheet.getWidth(), sheet.getHeight(), (System.nanoTime() - start) / 1e6);
+        return target;
+    }
+
+    private static BufferedImage composeCell(BufferedImage image, Scene scene, Font captionFont, int cellHeight) {
+        BufferedImage cell = new BufferedImage(SHEET_CELL_WIDTH, cellHeight, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = cell.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setColor(new Color(24, 24, 24));
+        g.fillRect(0, 0, cell.getWidth(), cell.getHeight());
+        drawFitted(g, image, 0, 0, SHEET_CELL_WIDTH, SHEET_CELL_WIDTH);
+        g.setFont(captionFont);
+        FontMetrics metrics = g.getFontMetrics();
+        int y = SHEET_CELL_WIDTH + SHEET_MARGIN / 2 + metrics.getAscent();
+        g.setColor(new Color(200, 200, 200));
+        g.drawString("Scene " + (scene.index + 1), 0, y);
+        g.setColor(Color.WHITE);
+        for (String line : wrap(scene.caption == null ? "" : scene.caption, metrics, SHEET_CELL_WIDTH, SHEET_CAPTION_LINES)) {
+            y += metrics.getHeight();
+            g.drawString(line, 0, y);
+        }
+        g.dispose();
+        return cell;
+    }
+
+    // Centres image in the box keeping its aspect ratio: area-averaged when it shrinks,
+    // bilinear when it grows.
+    private static void drawFitted(Graphics2D g, BufferedImage image, int x, int y, int width, int height) {
+        double scale = Math.min(width / (double) image.getWidth(), height / (double) image.getHeight());
+        int w = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage fitted = scale < 1 ? ImageScaler.scaleToFit(image, w, h) : image;
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(fitted, x + (width - w) / 2, y + (height - h) / 2, w, h, null);
+        g2.dispose();
+    }
+
+    // Greedy word wrap to at most maxLines; the last line ends in an ellipsis if text is cut.
+    static List<String> wrap(String text, FontMetrics metrics, int width, int maxLines) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        String[] words = text.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            String candidate = line.length() == 0 ? words[i] : line + " " + words[i];
+            if (line.length() > 0 && metrics.stringWidth(candidate) > width) {
+                if (lines.size() == maxLines - 1) {
+                    lines.add(ellipsize(line + " " + words[i], metrics, width));
+                    return lines;
+                }
+                lines.add(line.toString());
+                line.setLength(0);
+                line.append(words[i]);
+            } else {
+                line.setLength(0);
+                line.append(candidate);
+            }
+        }
+        lines.add(metrics.stringWidth(line.toString()) > width ? ellipsize(line + " ", metrics, width) : line.toString());
+        return lines;
+    }
+
+    private static String ellipsize(String text, FontMetrics metrics, int width) {
+        String ellipsis = "\u2026";
+        int end = text.length();
+        while (end > 0 && metrics.stringWidth(text.substring(0, end).trim() + ellipsis) > width) {
+            end--;
+        }
+        return text.substring(0, end).trim() + ellipsis;
+    }
+
+    private static FontMetrics metrics(Font font) {
+        Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        try {
+            return g.getFontMetrics(font);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // Where an export is written before it is moved over target, so a failure never
+    // leaves half a file at the chosen path. It keeps the extension, from which both
+    // OpenCV writers pick the format.
+    private static Path partialFile(Path target) {
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? target.resolveSibling(name.substring(0, dot) + ".partial" + name.substring(dot))
+                : target.resolveSibling(name + ".partial");
+    }
+
+    private static Path withExtension(Path file, String extension) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return file.resolveSibling(base + "." + extension);
+    }
+
+    interface Composer<T> {
+        T compose(Scene scene) throws IOException;
+    }
+
+    interface Sink<T> {
+        void accept(T result) throws IOException;
+    }
+
+    // Composes every scene on executor with at most WINDOW in flight, and passes the
+    // results to sink in scene order on the calling thread. A failure cancels the rest.
+    private static <T> void inOrder(List<Scene> scenes, Executor executor, Composer<T> composer, Sink<T> sink)
+            throws IOException, InterruptedException {
+        ArrayDeque<CompletableFuture<T>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        try {
+            while (submitted < scenes.size() || !pending.isEmpty()) {
+                while (submitted < scenes.size() && pending.size() < WINDOW) {
+                    Scene scene = scenes.get(submitted++);
+                    pending.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return composer.compose(scene);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor));
+                }
+                T result;
+                try {
+                    result = pending.peek().get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) cause).getCause();
+                    }
+                    throw new IOException("Composing a scene failed: " + cause, cause);
+                }
+                pending.poll();
+                sink.accept(result);
+            }
+        } finally {
+            pending.forEach(future -> future.cancel(true));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ac.kent;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import java.util.function.BooleanSupplier;
+
+// Appends streamed text to a JTextArea from any thread without flooding the EDT.
+// Deltas are buffered and at most one flush is queued at a time, so a fast stream
+// turns into a handful of batched appends instead of one event per token.
+final class StreamingTextAppender {
+    private final JTextArea target;
+    // Checked on the EDT before each flush; once false, buffered text is dropped.
+    private final BooleanSupplier live;
+    private final StringBuilder pending = new StringBuilder();
+    private boolean flushQueued;
+
+    StreamingTextAppender(JTextArea target, BooleanSupplier live) {
+        this.target = target;
+        this.live = live;
+    }
+
+    void append(String text) {
+        synchronized (pending) {
+            pending.append(text);
+            if (flushQueued) {
+                return;
+            }
+            flushQueued = true;
+        }
+        SwingUtilities.invokeLater(this::flush);
+    }
+
+    private void flush() {
+        String batch;
+        synchronized (pending) {
+            batch = pending.toString();
+            pending.setLength(0);
+            flushQueued = false;
+        }
+        if (!batch.isEmpty() && live.getAsBoolean()) {
+            target.append(batch);
+        }
+    }
+}
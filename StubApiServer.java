@@ -0,0 +1,339 @@
+package ac.kent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A local stand-in for the OpenAI endpoints the app uses, for benchmarks, load tests and
+// offline runs (-Dfilmassistant.provider=stub). Chat completions answer with a canned
+// topic, story or scene list depending on which prompt was sent, as one JSON body or,
+// for "stream": true, as server-sent events a few characters at a time. In JSON mode
+// ("response_format" json_object) the combined rewrite-and-story prompt gets
+// {"topic", "story"} and the scenes prompt {"scenes": [...]}. Image
+// generations return a URL on this server for a PNG drawn from the description, so the
+// same description always gets the same picture.
+//
+// Every API response waits latencyMs plus a random 0..jitterMs first, and a share of
+// them (errorRate) fails instead: half with 429 and a retry-after-ms header, half with
+// 500 or 503. Content depends only on the request; delays and failures come from a
+// Random seeded with seed. Image files are served without delay or failures.
+//
+// Standalone: java ac.kent.StubApiServer, configured by filmassistant.stub.port, .latencyMs,
+// .jitterMs, .errorRate, .tokenDelayMs and .seed; point the app at the printed base URL.
+public class StubApiServer implements AutoCloseable {
+    private static final String STORY_PARAGRAPH = "The rain had not stopped for three days, and the harbour lights "
+            + "blurred into long yellow streaks across the water. She walked the length of the pier twice before she "
+            + "noticed the boat that had not been there the night before, its hull painted the colour of old rope and "
+            + "its deck stacked with crates that nobody had come to collect. A lantern swung from the mast although "
+            + "there was no wind, and somewhere below a radio was playing a song she had not heard since childhood. "
+            + "She told herself she would only look, that she would be home before the tide turned.";
+    // Distinct pictures served; descriptions are spread over them by hash.
+    private static final int IMAGE_VARIANTS = 8;
+    // Characters per streamed delta, about one token.
+    private static final int STREAM_CHUNK_CHARS = 4;
+
+    private final HttpServer server;
+    private final int latencyMs;
+    private final int jitterMs;
+    private final double errorRate;
+    private final int tokenDelayMs;
+    private final Random random;
+    private final Map<Integer, byte[]> pngs = new ConcurrentHashMap<>();
+
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    StubApiServer(int latencyMs) throws IOException {
+        this(0, latencyMs, 0, 0, 0, 1);
+    }
+
+    // port 0 picks a free one. tokenDelayMs is the pause between streamed deltas.
+    StubApiServer(int port, int latencyMs, int jitterMs, double errorRate, int tokenDelayMs, long seed) throws IOException {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.errorRate = errorRate;
+        this.tokenDelayMs = tokenDelayMs;
+        this.random = new Random(seed);
+
+        // Without TCP_NODELAY split header/body writes hit delayed ACKs on kept-alive connections.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stub-api");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/v1/chat/completions", this::chat);
+        server.createContext("/v1/images/generations", this::imageGeneration);
+        server.createContext("/v1/models", this::models);
+        server.createContext("/files/", this::file);
+        server.start();
+    }
+
+    // A server configured from the filmassistant.stub.* system properties.
+    static StubApiServer configured() throws IOException {
+        return new StubApiServer(
+                Integer.getInteger("filmassistant.stub.port", 0),
+                Integer.getInteger("filmassistant.stub.latencyMs", 100),
+                Integer.getInteger("filmassistant.stub.jitterMs", 0),
+                Double.parseDouble(System.getProperty("filmassistant.stub.errorRate", "0")),
+                Integer.getInteger("filmassistant.stub.tokenDelayMs", 2),
+                Long.getLong("filmassistant.stub.seed", 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        StubApiServer stub = configured();
+        System.out.println("Stub API listening; run the app with -Dfilmassistant.api.base=" + stub.baseUrl());
+        Thread.currentThread().join();
+    }
+
+    // Value for filmassistant.api.base.
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+    }
+
+    // API responses sent, and how many of those were injected failures.
+    long served() {
+        return served.get();
+    }
+
+    long failed() {
+        return failed.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void chat(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (delayOrFail(exchange)) {
+            return;
+        }
+        // Answers depend on the request, so different prompts never look like duplicates.
+        String tag = Integer.toHexString(request.hashCode());
+        boolean jsonMode = request.contains("\"json_object\"");
+        String content;
+        if (request.contains("image descriptions")) {
+            JsonWriter scenes = new JsonWriter();
+            if (jsonMode) {
+                scenes.beginObject().name("scenes");
+            }
+            scenes.beginArray();
+            for (int i = 0; i < maxScenes(request); i++) {
+                scenes.value("Scene " + (i + 1) + " of " + tag + ": a figure on a rain-soaked pier at night, lantern light on a strange boat");
+            }
+            scenes.endArray();
+            content = (jsonMode ? scenes.endObject() : scenes).toString();
+        } else if (jsonMode && request.contains("rewrite the topic")) {
+            content = new JsonWriter().beginObject()
+                    .name("topic").value(topic(tag))
+                    .name("story").value(story(tag))
+                    .endObject().toString();
+        } else if (request.contains("rewrite the topic")) {
+            content = topic(tag);
+        } else {
+            content = story(tag);
+        }
+        if (request.contains("\"stream\":true")) {
+            stream(exchange, content);
+            return;
+        }
+        String response = new JsonWriter(content.length() + 192).beginObject()
+                .name("choices").beginArray().beginObject()
+                .name("index").value(0)
+                .name("message").beginObject().name("role").value("assistant").name("content").value(content).endObject()
+                .name("finish_reason").value("stop")
+                .endObject().endArray()
+                .name("usage").beginObject()
+                .name("prompt_tokens").value(request.length() / 4)
+                .name("completion_tokens").value(content.length() / 4)
+                .endObject()
+                .endObject().toString();
+        respond(exchange, 200, "application/json", response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // The "maximum N" the scenes prompt asks for, or MAX_SCENES.
+    private static int maxScenes(String request) {
+        int at = request.indexOf("maximum ");
+        int end = at < 0 ? -1 : at + "maximum ".length();
+        int start = end;
+        while (end >= 0 && end < request.length() && Character.isDigit(request.charAt(end))) {
+            end++;
+        }
+        return end > start ? Math.min(StoryPipeline.MAX_SCENES, Integer.parseInt(request.substring(start, end)))
+                : StoryPipeline.MAX_SCENES;
+    }
+
+    private static String topic(String tag) {
+        return "A stranger's boat appears overnight in a drowned harbour town (" + tag + ")";
+    }
+
+    private static String story(String tag) {
+        StringBuilder story = new StringBuilder();
+        for (int i = 0; i < StoryPipeline.MAX_SCENES; i++) {
+            story.append(i == 0 ? "" : "\n\n").append("Story ").append(tag).append(", part ").append(i + 1)
+                    .append(". ").append(STORY_PARAGRAPH);
+        }
+        return story.toString();
+    }
+
+    // One SSE event per few characters, then a finish chunk and [DONE], like the real API.
+    private void stream(HttpExchange exchange, String content) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            writeEvent(out, new JsonWriter().beginObject().name("choices").beginArray().beginObject()
+                    .name("index").value(0)
+                    .name("delta").beginObject().name("role").value("assistant").endObject()
+                    .endObject().endArray().endObject().toString());
+            for (int start = 0; start < content.length(); start += STREAM_CHUNK_CHARS) {
+                if (tokenDelayMs > 0 && start > 0 && !sleep(tokenDelayMs)) {
+                    return;
+                }
+                String delta = content.substring(start, Math.min(content.length(), start + STREAM_CHUNK_CHARS));
+                writeEvent(out, new JsonWriter(delta.length() + 64).beginObject().name("choices").beginArray().beginObject()
+                        .name("index").value(0)
+                        .name("delta").beginObject().name("content").value(delta).endObject()
+                        .endObject().endArray().endObject().toString());
+            }
+            writeEvent(out, new JsonWriter().beginObject().name("choices").beginArray().beginObject()
+                    .name("index").value(0)
+                    .name("delta").beginObject().endObject()
+                    .name("finish_reason").value("stop")
+                    .endObject().endArray().endObject().toString());
+            writeEvent(out, "[DONE]");
+        }
+        served.incrementAndGet();
+    }
+
+    private static void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Startup's warm-up request; answered at once, without the simulated latency.
+    private void models(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        String response = new JsonWriter().beginObject()
+                .name("data").beginArray().beginObject().name("id").value("stub").endObject().endArray()
+                .endObject().toString();
+        respond(exchange, 200, "application/json", response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void imageGeneration(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (delayOrFail(exchange)) {
+            return;
+        }
+        int variant = Math.floorMod(String.valueOf(JsonReader.findString(request, "prompt")).hashCode(), IMAGE_VARIANTS);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/files/scene" + variant + ".png";
+        String response = new JsonWriter().beginObject()
+                .name("data").beginArray().beginObject().name("url").value(url).endObject().endArray()
+                .endObject().toString();
+        respond(exchange, 200, "application/json", response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void file(HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/files/".length());
+        int variant;
+        try {
+            variant = Integer.parseInt(name.replace("scene", "").replace(".png", ""));
+        } catch (NumberFormatException e) {
+            variant = 0;
+        }
+        respond(exchange, 200, "image/png", pngs.computeIfAbsent(Math.floorMod(variant, IMAGE_VARIANTS), StubApiServer::encodePng));
+    }
+
+    private static byte[] encodePng(int variant) {
+        try {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageIO.write(sampleImage(512, 512, 7 + variant), "png", encoded);
+            return encoded.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Smooth gradients plus noise, so the PNG compresses about as well as a rendered scene.
+    static BufferedImage sampleImage(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(24);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 127 / width + noise) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    // Waits out the simulated latency, then maybe answers with an injected failure.
+    // Returns true when the exchange has been answered (or abandoned) already.
+    private boolean delayOrFail(HttpExchange exchange) throws IOException {
+        int delay;
+        boolean fail;
+        int failure;
+        synchronized (random) {
+            delay = latencyMs + (jitterMs > 0 ? random.nextInt(jitterMs + 1) : 0);
+            fail = errorRate > 0 && random.nextDouble() < errorRate;
+            failure = random.nextInt(4);
+        }
+        if (!sleep(delay)) {
+            exchange.close();
+            return true;
+        }
+        if (!fail) {
+            return false;
+        }
+        failed.incrementAndGet();
+        int status = failure < 2 ? 429 : failure == 2 ? 500 : 503;
+        if (status == 429) {
+            exchange.getResponseHeaders().add("retry-after-ms", String.valueOf(Math.max(10, latencyMs)));
+        }
+        String error = new JsonWriter().beginObject().name("error").beginObject()
+                .name("message").value("Injected stub failure")
+                .name("type").value(status == 429 ? "rate_limit_exceeded" : "server_error")
+                .endObject().endObject().toString();
+        respond(exchange, status, "application/json", error.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+        if (!contentType.startsWith("image/")) {
+            served.incrementAndGet();
+        }
+    }
+
+    private static boolean sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ac.kent;
+
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Aspect-preserving thumbnail scaler (an ImageScaler area average) with a small LRU
+// cache, so scrolling back to a scene or repainting the gallery never scales the same
+// image twice.
+final class ThumbnailScaler {
+    interface Source {
+        BufferedImage load() throws Exception;
+    }
+
+    private final Map<String, BufferedImage> cache;
+    // Bumped by clear(), under the cache lock, so a load that began before it is not cached.
+    private long epoch;
+
+    ThumbnailScaler(int maxEntries) {
+        this.cache = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // key identifies the source image (scene and filter); the target size is added here.
+    BufferedImage thumbnail(String key, int maxWidth, int maxHeight, Source source) throws Exception {
+        String cacheKey = key + "@" + maxWidth + "x" + maxHeight;
+        long loadEpoch;
+        synchronized (cache) {
+            BufferedImage cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            loadEpoch = epoch;
+        }
+        BufferedImage scaled = scaleToFit(source.load(), maxWidth, maxHeight);
+        synchronized (cache) {
+            // Otherwise this is the previous story's scene under a key the new story reuses.
+            if (loadEpoch == epoch) {
+                cache.put(cacheKey, scaled);
+            }
+        }
+        return scaled;
+    }
+
+    // The cached thumbnail, or null; never loads or scales anything.
+    BufferedImage cached(String key, int maxWidth, int maxHeight) {
+        synchronized (cache) {
+            return cache.get(key + "@" + maxWidth + "x" + maxHeight);
+        }
+    }
+
+    void clear() {
+        synchronized (cache) {
+            cache.clear();
+            epoch++;
+        }
+    }
+
+    // Returns the image itself when it already fits.
+    static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        return ImageScaler.scaleToFit(image, maxWidth, maxHeight);
+    }
+}
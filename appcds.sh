@@ -0,0 +1,30 @@
+#!/bin/sh
+# Builds an AppCDS (application class-data sharing) archive for Film Assistant, so later
+# launches map the classes it loads at startup (Swing, the HTTP client, ImageIO, the
+# JSON codec, OpenCV's bindings) from the archive instead of parsing and verifying them.
+#
+# Usage: ./appcds.sh <classpath> [archive] [-D... options for the training run]
+#
+# The training run opens the window, lets Startup prewarm everything, then exits and
+# writes the archive (JDK 13+ dynamic archive). It needs a display and the same
+# classpath and JDK as the runs that use the archive, and a classpath of jars only
+# (CDS refuses class directories). Afterwards start the app with
+#   java -XX:SharedArchiveFile=<archive> -cp <classpath> ac.kent.Main
+# The JVM ignores an archive that does not match its classpath or version, with a
+# warning, and starts normally.
+set -e
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <classpath> [archive] [-D... options]" >&2
+    exit 2
+fi
+classpath=$1
+archive=${2:-film-assistant.jsa}
+[ $# -ge 2 ] && shift 2 || shift 1
+
+java -XX:ArchiveClassesAtExit="$archive" \
+    -Dfilmassistant.startup.exitWhenWarm=true \
+    "$@" \
+    -cp "$classpath" ac.kent.Main
+
+echo "Wrote $archive; run with: java -XX:SharedArchiveFile=$archive -cp $classpath ac.kent.Main"